@@ -0,0 +1,90 @@
+package com.vladtcvs.otpcard.benchmarks;
+
+import java.util.Arrays;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import com.vladtcvs.otpcard.OTPCard;
+
+import javacard.framework.AID;
+
+// Applet installed with given parameters, PIN is verified and all slots are filled
+@State(Scope.Thread)
+public class CardState {
+    static final byte[] OK = {(byte)0x90, (byte)0x00};
+    static final byte[] PIN = {'1', '2', '3', '4', '5', '6'};
+
+    @Param({"8", "1024"})
+    public int maxSecrets;
+
+    @Param({"8", "64"})
+    public int nameLength;
+
+    Simulator sim;
+
+    @Setup(Level.Trial)
+    public void install() {
+        sim = new Simulator();
+        AID appletAID = AIDUtil.create("A000000002020101");
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         (byte)(maxSecrets >> 8), (byte)maxSecrets, (byte)nameLength, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+
+        transmit(pinAPDU());
+        for (int id = 0; id < maxSecrets; id++)
+            transmit(storeAPDU(id, (byte)1));
+    }
+
+    // Setup only, benchmarks return response to JMH instead of checking it
+    byte[] transmit(byte[] apdu) {
+        byte[] resp = sim.transmitCommand(apdu);
+        if (resp.length < 2 || !Arrays.equals(OK, Arrays.copyOfRange(resp, resp.length - 2, resp.length)))
+            throw new IllegalStateException("APDU " + Arrays.toString(apdu) + " failed: " + Arrays.toString(resp));
+        return resp;
+    }
+
+    static byte[] command(byte ins, byte p1, byte[] data) {
+        byte[] apdu = new byte[5 + data.length];
+        apdu[1] = ins;
+        apdu[2] = p1;
+        apdu[4] = (byte)data.length;
+        System.arraycopy(data, 0, apdu, 5, data.length);
+        return apdu;
+    }
+
+    static byte[] pinAPDU() {
+        byte[] data = new byte[1 + PIN.length];
+        data[0] = (byte)PIN.length;
+        System.arraycopy(PIN, 0, data, 1, PIN.length);
+        return command((byte)0x42, (byte)0, data);
+    }
+
+    // SAVE_NEW_SECRET of 20 bytes secret with name "KEY" + id
+    static byte[] storeAPDU(int id, byte method) {
+        byte[] name = ("KEY" + id).getBytes();
+        byte[] data = new byte[2 + 1 + 20 + 1 + name.length + 1];
+        int pos = 0;
+        data[pos++] = (byte)(id >> 8);
+        data[pos++] = (byte)id;
+        data[pos++] = 20;
+        for (int i = 0; i < 20; i++)
+            data[pos++] = (byte)(id + i);
+        data[pos++] = (byte)name.length;
+        System.arraycopy(name, 0, data, pos, name.length);
+        pos += name.length;
+        data[pos] = method;
+        return command((byte)0x03, (byte)0, data);
+    }
+}
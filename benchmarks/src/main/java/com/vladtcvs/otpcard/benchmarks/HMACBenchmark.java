@@ -0,0 +1,58 @@
+package com.vladtcvs.otpcard.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// HMAC APDU by hash method and challenge size
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HMACBenchmark {
+
+    @State(Scope.Thread)
+    public static class HMACState extends CardState {
+        @Param({"SHA1", "SHA256", "SHA512"})
+        public String method;
+
+        @Param({"8", "64", "200"})
+        public int challengeSize;
+
+        byte[] apdu;
+
+        @Setup(Level.Trial)
+        public void prepare() {
+            // Id indexes record table directly, so the slot doesn't change lookup cost
+            int id = maxSecrets - 1;
+            byte hash = (byte)(method.equals("SHA1") ? 1 : method.equals("SHA256") ? 2 : 3);
+            transmit(storeAPDU(id, hash));
+
+            byte[] data = new byte[3 + challengeSize];
+            data[0] = (byte)(id >> 8);
+            data[1] = (byte)id;
+            data[2] = (byte)challengeSize;
+            for (int i = 0; i < challengeSize; i++)
+                data[3 + i] = (byte)i;
+            apdu = command((byte)0x01, (byte)0, data);
+            transmit(apdu);
+        }
+    }
+
+    @Benchmark
+    public byte[] hmac(HMACState state) {
+        return state.sim.transmitCommand(state.apdu);
+    }
+}
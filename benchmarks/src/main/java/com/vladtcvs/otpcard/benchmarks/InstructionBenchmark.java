@@ -0,0 +1,61 @@
+package com.vladtcvs.otpcard.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// GET_SECRET_STATUS, PIN check and SAVE_NEW_SECRET APDUs
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InstructionBenchmark {
+
+    @State(Scope.Thread)
+    public static class InstructionState extends CardState {
+        byte[] status;
+        byte[] pin;
+        byte[][] store;
+        int next;
+
+        @Setup(Level.Trial)
+        public void prepare() {
+            int id = maxSecrets - 1;
+            status = command((byte)0x02, (byte)0, new byte[]{(byte)(id >> 8), (byte)id});
+            pin = pinAPDU();
+            // Hash method alternates, so each SAVE_NEW_SECRET rewrites the record
+            store = new byte[][]{storeAPDU(id, (byte)1), storeAPDU(id, (byte)2)};
+            transmit(status);
+            transmit(pin);
+            transmit(store[0]);
+            transmit(store[1]);
+        }
+    }
+
+    @Benchmark
+    public byte[] getSecretStatus(InstructionState state) {
+        return state.sim.transmitCommand(state.status);
+    }
+
+    @Benchmark
+    public byte[] checkPIN(InstructionState state) {
+        return state.sim.transmitCommand(state.pin);
+    }
+
+    @Benchmark
+    public byte[] saveNewSecret(InstructionState state) {
+        state.next ^= 1;
+        return state.sim.transmitCommand(state.store[state.next]);
+    }
+}
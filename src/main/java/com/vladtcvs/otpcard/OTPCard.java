@@ -2,19 +2,55 @@ package com.vladtcvs.otpcard;
 
 import javacard.framework.*;
 import javacard.security.*;
+import javacardx.apdu.ExtendedLength;
 
-// Here we implement HOTP RFC-4226
+// Here we implement HOTP RFC-4226 and TOTP RFC-6238
 // https://datatracker.ietf.org/doc/html/rfc4226
+// https://datatracker.ietf.org/doc/html/rfc6238
 
 /*
  * Commands:
- *      PIN             - authenticate
- *          Arguments:  PIN
- *          Returns:    status
+ *      PIN             - authenticate, optionally compute OTP or HMAC in the same APDU
+ *          Arguments:  PIN, optional secret id and arguments of HMAC, HOTP or TOTP by secret type
+ *          Returns:    status, HMAC or OTP digits if secret is given
  *
- *      HOTP            - generate new HOTP
+ *      HMAC            - generate HMAC
  *          Arguments:  secret id, challenge
- *          Returns:    status, OTP
+ *          Returns:    status, HMAC
+ *
+ *      HOTP            - generate HOTP and increment counter of secret
+ *          Arguments:  secret id
+ *          Returns:    status, OTP digits
+ *
+ *      VERIFY_HOTP     - check HOTP against counters c..c+W, advance counter on match
+ *          Arguments:  secret id, window W, OTP digits, optional next OTP digits for resync
+ *          Returns:    status, offset of matched counter
+ *
+ *      TOTP            - generate TOTP for current time, optionally with window of steps around it
+ *          Arguments:  secret id, current Unix time, optional window size N
+ *          Returns:    status, OTP digits for 2N+1 time steps from oldest to newest
+ *
+ *      BATCH_HMAC      - generate HMAC for several secrets and challenges
+ *          Arguments:  list of secret id, challenge
+ *          Returns:    status, concatenated HMACs
+ *
+ *      HMAC_STREAM     - generate HMAC of message which doesn't fit to one APDU
+ *          Arguments:  P2 0x00 - INIT, secret id
+ *                      P2 0x01 - UPDATE, next part of message
+ *                      P2 0x02 - FINAL, optional last part of message
+ *          Returns:    status, HMAC after FINAL
+ *
+ *      PBKDF2          - derive key with PBKDF2 (RFC 8018), HMAC with secret is used as PRF
+ *          Arguments:  P2 0x00 - START, secret id, salt, iteration count (4 bytes), key length,
+ *                                max iterations per APDU (2 bytes)
+ *                      P2 0x01 - CONTINUE
+ *          Returns:    status, derived key when all iterations are done, nothing otherwise
+ *
+ *      HKDF            - derive key with HKDF (RFC 5869), secret is used as input key material
+ *          Arguments:  P2 0x00 - EXTRACT_EXPAND, secret id, salt, info, key length
+ *                                P1 bit 0x01 - keep PRK in RAM for following EXPAND
+ *                      P2 0x01 - EXPAND with kept PRK, info, key length
+ *          Returns:    status, derived key
  *
  *      SAVE_PIN        - save new PIN
  *          Arguments:  new PIN
@@ -29,9 +65,16 @@ import javacard.security.*;
  *          Returns:    status
  * 
  *      SAVE_NEW_SECRET - saves new secret to card
- *          Arguments:  secret value, secret name, current time, secret metadata, hash method (SHA1, SHA256, SHA512)
+ *          Arguments:  secret id, secret value, secret name, hash method (SHA1, SHA256, SHA512),
+ *                      optional OTP parameters (type, digits, HOTP counter or TOTP step and T0)
+ *                      P1 bit 0x01 - use digest based HMAC, even if card has HMAC signature
  *          Returns:    status, secret id
  *
+ *      SAVE_SECRETS    - saves several secrets to card in one transaction, either all or none of them
+ *          Arguments:  list of SAVE_NEW_SECRET arguments, each prefixed with its length
+ *                      P1 bit 0x01 - use digest based HMAC, even if card has HMAC signature
+ *          Returns:    status
+ *
  *      DELETE_SECRET   - delete secret
  *          Arguments:  secret id
  *          Returns:    status
@@ -40,14 +83,37 @@ import javacard.security.*;
  *          Arguments:  id
  *          Returns:    status, secret name, secret used flag, hash method (SHA1, SHA256, SHA512)
  *
+ *      LIST_SECRETS        - get status of as many secrets as fit to response, starting with id
+ *          Arguments:  first id
+ *                      P1 bit 0x01 - skip unused secrets
+ *          Returns:    status, next id to list (0xFFFF if all listed), id and status of each secret
+ *
+ *      GET_STATS           - get usage statistics: how many times each command was run and each secret was used
+ *          Arguments:  first id
+ *          Returns:    status, next id to list (0xFFFF if all listed), uses of secrets which were not counted per secret,
+ *                      counter of each INS 0x00..0x1F (PIN is counted at 0x00), id and uses of each used secret,
+ *                      all counters are 4 bytes
+ *                      counts since the last flush of RAM accumulators are lost if card loses power
+ *
  *      GET_INFO            - get info about applet
- *          Arguments:
- *          Returns:    status, applet info, max amount of secrets, max secret name length, max secret length
+ *          Arguments:  P1 bit 0x01 - extended info
+ *          Returns:    status, applet info, max amount of secrets, max secret name length, max secret length,
+ *                      free bytes for secrets and names (2 bytes)
+ *                      extended info is list of <TAG> <LEN> VALUE fields: serial number, used and free slots,
+ *                      limits, free space for secrets, available memory, supported algorithms, max APDU sizes
  * 
  *      secret values never leaves the card! If you need backup, do it during adding procedure
+ *
+ *      HMAC, BATCH_HMAC, HMAC_STREAM INIT, PBKDF2 START, HKDF EXTRACT_EXPAND, HOTP, VERIFY_HOTP and TOTP accept P1 bit 0x80 - secret is given
+ *      by <NAME LEN> NAME instead of id. If several secrets have this name, one with lowest id is used
+ *
+ *      secret ids are 2 bytes big endian
+ *
+ *      all commands accept both short and extended APDUs, extended APDUs are
+ *      useful for BATCH_HMAC, which otherwise is limited by 256 bytes of response
  */
 
-public class OTPCard extends Applet {
+public class OTPCard extends Applet implements ExtendedLength {
 
     private interface INS {
         byte HMAC = (byte) 0x01;
@@ -61,6 +127,17 @@ public class OTPCard extends Applet {
 
         byte GET_INFO = (byte) 0x08;
 
+        byte BATCH_HMAC = (byte) 0x09;
+        byte HOTP = (byte) 0x0A;
+        byte TOTP = (byte) 0x0B;
+        byte VERIFY_HOTP = (byte) 0x0C;
+        byte LIST_SECRETS = (byte) 0x0D;
+        byte SAVE_SECRETS = (byte) 0x0E;
+        byte HMAC_STREAM = (byte) 0x0F;
+        byte PBKDF2 = (byte) 0x10;
+        byte HKDF = (byte) 0x11;
+        byte GET_STATS = (byte) 0x12;
+
         byte PIN = (byte) 0x42;
     }
 
@@ -71,132 +148,801 @@ public class OTPCard extends Applet {
         byte SHA512 = (byte)0x03;
     }
 
+    // How secret is used
+    private interface OTP_TYPE {
+        // Raw HMAC of challenge from host
+        byte HMAC = (byte)0x00;
+        // RFC 4226 HOTP with counter stored on card
+        byte HOTP = (byte)0x01;
+        // RFC 6238 TOTP with time step and T0 stored on card
+        byte TOTP = (byte)0x02;
+    }
+
+    // P1 flags of SAVE_NEW_SECRET
+    private interface STORE_FLAGS {
+        // Compute HMAC with digest even if card has HMAC signature
+        byte SOFTWARE_HMAC = (byte)0x01;
+    }
+
+    // Steps of saving secret
+    private interface SAVE_MODE {
+        // Secret is checked, nothing is changed
+        byte CHECK = (byte)0;
+        // Counters needed by secret are created, so they are not created in transaction
+        byte ALLOCATE = (byte)1;
+        // Secret is written
+        byte WRITE = (byte)2;
+    }
+
+    // P1 flags of commands which use secret
+    private interface SECRET_FLAGS {
+        // Secret is addressed by name instead of id
+        byte BY_NAME = (byte)0x80;
+    }
+
+    // P1 flags of LIST_SECRETS
+    private interface LIST_FLAGS {
+        byte USED_ONLY = (byte)0x01;
+    }
+
+    // P2 of HMAC_STREAM
+    private interface STREAM_STEP {
+        byte INIT = (byte)0x00;
+        byte UPDATE = (byte)0x01;
+        byte FINAL = (byte)0x02;
+    }
+
+    // P2 of PBKDF2
+    private interface PBKDF2_STEP {
+        byte START = (byte)0x00;
+        byte CONTINUE = (byte)0x01;
+    }
+
+    // P2 of HKDF
+    private interface HKDF_STEP {
+        byte EXTRACT_EXPAND = (byte)0x00;
+        byte EXPAND = (byte)0x01;
+    }
+
+    private interface HKDF_FLAGS {
+        byte KEEP_PRK = (byte)0x01;
+    }
+
+    // P1 flags of GET_INFO
+    private interface INFO_FLAGS {
+        // TLV report instead of fixed fields
+        byte EXTENDED = (byte)0x01;
+    }
+
+    // Tags of extended GET_INFO
+    private interface INFO_TAG {
+        byte SERIAL = (byte)0x01;
+        byte SLOTS = (byte)0x02;
+        byte LIMITS = (byte)0x03;
+        byte SLAB = (byte)0x04;
+        byte MEMORY = (byte)0x05;
+        byte ALGORITHMS = (byte)0x06;
+        byte APDU_SIZE = (byte)0x07;
+    }
+
+    // Bits of each hash method in INFO_TAG.ALGORITHMS
+    private interface INFO_ALGORITHM {
+        byte DIGEST = (byte)0x01;
+        byte HMAC_SIGNATURE = (byte)0x02;
+    }
+
+    // Persistent big endian counter, which spreads writes over a ring of cells,
+    // so EEPROM cells of often incremented counters are not worn out.
+    // Cell is value followed by marker. Marker is 0 in cell, which was not written completely,
+    // otherwise it is successor of marker of previous cell, so the last written cell
+    // is the one whose next cell doesn't continue the sequence.
+    // New value goes to the cell after the last one: its marker is cleared, value is written,
+    // then marker is set. Writes of single bytes are atomic, so if card is torn
+    // during write, the previous cell stays the last one and counter keeps old value
+    private static class RingCounter {
+        // Markers are 1..MARKER_MAX, it should be greater than amount of cells
+        private static final byte MARKER_MAX = 0x7F;
+        private final byte[] cells;
+        private final short length;
+        private final short cell_size;
+
+        // Counter of length bytes in count cells, count is at least 2
+        RingCounter(short length, short count)
+        {
+            this.length = length;
+            cell_size = (short)(length + 1);
+            cells = new byte[(short)(cell_size * count)];
+            // First cell holds zero
+            cells[length] = 1;
+        }
+
+        private static byte NextMarker(byte marker)
+        {
+            return marker == MARKER_MAX ? 1 : (byte)(marker + 1);
+        }
+
+        private short NextCell(short cell)
+        {
+            cell += cell_size;
+            return cell == (short)cells.length ? 0 : cell;
+        }
+
+        // Offset of the last written cell, only markers are read
+        private short Head()
+        {
+            for (short cell = 0; cell < (short)cells.length; cell += cell_size) {
+                byte marker = cells[(short)(cell + length)];
+                if (marker != 0 && cells[(short)(NextCell(cell) + length)] != NextMarker(marker))
+                    return cell;
+            }
+            return 0;
+        }
+
+        // Invalidate cell after head, returns its offset
+        private short Begin(short head)
+        {
+            short cell = NextCell(head);
+            if (cells[(short)(cell + length)] != 0)
+                cells[(short)(cell + length)] = 0;
+            return cell;
+        }
+
+        private void Commit(short head, short cell)
+        {
+            cells[(short)(cell + length)] = NextMarker(cells[(short)(head + length)]);
+        }
+
+        // Copy value to buffer[off], returns offset after it
+        public short Read(byte[] buffer, short off)
+        {
+            return Util.arrayCopyNonAtomic(cells, Head(), buffer, off, length);
+        }
+
+        private void Store(short head, byte[] buffer, short off)
+        {
+            short cell = Begin(head);
+            Util.arrayCopyNonAtomic(buffer, off, cells, cell, length);
+            Commit(head, cell);
+        }
+
+        // Set value located at buffer[off]
+        public void Write(byte[] buffer, short off)
+        {
+            Store(Head(), buffer, off);
+        }
+
+        public void Clear()
+        {
+            short head = Head();
+            short cell = Begin(head);
+            Util.arrayFillNonAtomic(cells, cell, length, (byte)0);
+            Commit(head, cell);
+        }
+
+        // Add value to counter, new value is prepared at tmp[tmp_off]
+        public void Add(short value, byte[] tmp, short tmp_off)
+        {
+            short head = Head();
+            Util.arrayCopyNonAtomic(cells, head, tmp, tmp_off, length);
+            addNumber(tmp, tmp_off, length, value);
+            Store(head, tmp, tmp_off);
+        }
+    }
+
     private class OTPRecord {
+        private final short id;
         private byte method;
-        private byte[] name;
+        // Secret and name are packed one after another in slab
+        private short data_offset;
+        // Bytes of slab reserved by record at data_offset, shorter data is written in place
+        private short data_capacity;
+        // Position of record in slab_order, valid if data_capacity is not 0
+        private short order_pos;
+        private byte secret_length;
         private byte name_length;
-        private byte[] secret;
-        private MessageDigest digest;
-        private byte[] ipad;
-        private byte[] opad;
-        private byte[] inner;
-
-        public OTPRecord(byte maxNameLength)
+        // Use HMAC signature engine of the card instead of digest
+        private boolean hardware;
+        private byte type;
+        private byte digits;
+        // HOTP moving factor, 8 bytes big endian, created when record is stored as HOTP
+        private RingCounter counter;
+        // TOTP time step in seconds and Unix time T0, 8 bytes big endian,
+        // T0 is created when record is stored as TOTP
+        private short step;
+        private byte[] t0;
+        // Amount of HMACs and OTPs computed with secret, 4 bytes big endian,
+        // created when record is stored first time
+        private RingCounter uses;
+
+        public OTPRecord(short id)
         {
-            name = new byte[maxNameLength];
+            this.id = id;
+            data_offset = 0;
+            data_capacity = 0;
+            order_pos = 0;
+            secret_length = 0;
             name_length = 0;
-            secret = new byte[64];
-            digest = null;
             method = HMAC_HASH.NONE;
+            hardware = false;
+            type = OTP_TYPE.HMAC;
+            digits = 0;
+            counter = null;
+            uses = null;
+            step = 0;
+            t0 = null;
+        }
+
+        // Key material of the last used record is kept in RAM until deselect,
+        // so repeated HMACs with the same record don't read persistent memory
+        private void LoadKey()
+        {
+            if (cached_record[0] == (short)(id + 1))
+                return;
 
-            ipad = JCSystem.makeTransientByteArray((short)128, JCSystem.CLEAR_ON_DESELECT);
-            opad = JCSystem.makeTransientByteArray((short)128, JCSystem.CLEAR_ON_DESELECT);
-            inner = JCSystem.makeTransientByteArray((short)64, JCSystem.CLEAR_ON_DESELECT);
-            for (short i = 0; i < name.length; ++i)
-                name[0] = 0;
+            SetKey(slab, data_offset, secret_length);
+            cached_record[0] = (short)(id + 1);
         }
 
-        private short GenerateHMAC_SHA1(byte[] input_buffer, short pos, short len, byte[] buffer)
+        // Load HMAC key to signature key or to ipad and opad of digest based HMAC
+        private void SetKey(byte[] key, short off, short len)
         {
-            if (buffer.length < 20)
-                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            cached_record[0] = 0;
+            if (hardware) {
+                hmac_key.setKey(key, off, len);
+            } else {
+                // Key XOR-ed with HMAC ipad and opad constants and padded with zeros to block size,
+                // keys are not longer than block. Whole block is always processed,
+                // so HMAC timing does not depend on key length
+                short block_size = GetBlockSize();
+                for (short i = 0; i < block_size; i++) {
+                    byte k = i < len ? key[(short)(off + i)] : 0;
+                    hmac_ipad[i] = (byte) (k ^ 0x36);
+                    hmac_opad[i] = (byte) (k ^ 0x5C);
+                }
+            }
+        }
 
-            for (short i = 0; i < 64; i++) {
-                ipad[i] = (byte) (secret[i] ^ 0x36);
-                opad[i] = (byte) (secret[i] ^ 0x5C);
+        // Called before secret of record is changed
+        private void Uncache()
+        {
+            if (cached_record[0] == (short)(id + 1))
+                cached_record[0] = 0;
+            if (hmac_session[0] == (short)(id + 1))
+                hmac_session[0] = 0;
+            if (pbkdf2_state[0] == (short)(id + 1))
+                pbkdf2_state[0] = 0;
+            if (hkdf_record[0] == (short)(id + 1))
+                hkdf_record[0] = 0;
+            // Uses of old secret are not added to new one
+            for (short i = 0; i < (short)(2 * STATS_SLOTS); i += 2) {
+                if (stats_slots_ram[i] == (short)(id + 1)) {
+                    stats_slots_ram[i] = 0;
+                    stats_slots_ram[(short)(i + 1)] = 0;
+                }
             }
+        }
+
+        private short GenerateHMAC_Digest(MessageDigest digest, short block_size,
+                                          byte[] input_buffer, short pos, short len,
+                                          byte[] buffer, short out_off)
+        {
+            short hash_len = digest.getLength();
+            if (buffer.length < (short)(out_off + hash_len))
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
+            LoadKey();
             digest.reset();
-            digest.update(ipad, (short) 0, (short) 64);
+            digest.update(hmac_ipad, (short) 0, block_size);
             digest.update(input_buffer, pos, len);
-            digest.doFinal(inner, (short) 0, (short) 0, inner, (short) 0);
+            digest.doFinal(hmac_inner, (short) 0, (short) 0, hmac_inner, (short) 0);
             digest.reset();
-            digest.update(opad, (short) 0, (short) 64);
-            digest.doFinal(inner, (short) 0, (short) 20, buffer, (short) 0);
-            return 20;
+            digest.update(hmac_opad, (short) 0, block_size);
+            digest.doFinal(hmac_inner, (short) 0, hash_len, buffer, out_off);
+            return hash_len;
+        }
+
+        private short GenerateHMAC_SHA1(byte[] input_buffer, short pos, short len, byte[] buffer, short out_off)
+        {
+            return GenerateHMAC_Digest(sha1_digest, (short) 64, input_buffer, pos, len, buffer, out_off);
+        }
+
+        private short GenerateHMAC_SHA256(byte[] input_buffer, short pos, short len, byte[] buffer, short out_off)
+        {
+            return GenerateHMAC_Digest(sha256_digest, (short) 64, input_buffer, pos, len, buffer, out_off);
+        }
+
+        private short GenerateHMAC_SHA512(byte[] input_buffer, short pos, short len, byte[] buffer, short out_off)
+        {
+            return GenerateHMAC_Digest(sha512_digest, (short) 128, input_buffer, pos, len, buffer, out_off);
+        }
+
+        private short GenerateHMAC_Signature(byte[] input_buffer, short pos, short len, byte[] buffer, short out_off)
+        {
+            Signature signature = getHMACSignature(method);
+            LoadKey();
+            signature.init(hmac_key, Signature.MODE_SIGN);
+            if (buffer.length < (short)(out_off + signature.getLength()))
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+            return signature.sign(input_buffer, pos, len, buffer, out_off);
+        }
+
+        public short GetHMACLength()
+        {
+            switch (method) {
+            case HMAC_HASH.SHA1:
+                return 20;
+            case HMAC_HASH.SHA256:
+                return 32;
+            case HMAC_HASH.SHA512:
+                return 64;
+            default:
+                ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+                return 0;
+            }
+        }
+
+        private short GetBlockSize()
+        {
+            return method == HMAC_HASH.SHA512 ? (short)128 : (short)64;
         }
 
-        private short GenerateHMAC_SHA256(byte[] input_buffer, short pos, short len, byte[] buffer)
+        // Streaming HMAC uses the same digest or signature as other HMACs,
+        // so it is valid until any other HMAC is computed
+        public void StartHMAC()
         {
-            return 32;
+            if (method == HMAC_HASH.NONE)
+                ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+
+            LoadKey();
+            BeginHMAC();
+            hmac_session[0] = (short)(id + 1);
+        }
+
+        private void BeginHMAC()
+        {
+            if (hardware) {
+                getHMACSignature(method).init(hmac_key, Signature.MODE_SIGN);
+            } else {
+                MessageDigest digest = getDigest(method);
+                digest.reset();
+                digest.update(hmac_ipad, (short) 0, GetBlockSize());
+            }
         }
 
-        private short GenerateHMAC_SHA512(byte[] input_buffer,  short pos, short len, byte[] buffer)
+        public void UpdateHMAC(byte[] input_buffer, short pos, short len)
         {
-            return 64;
+            if (hardware)
+                getHMACSignature(method).update(input_buffer, pos, len);
+            else
+                getDigest(method).update(input_buffer, pos, len);
         }
 
-        public short GenerateHMAC(byte[] input_buffer, short pos, short len, byte[] buffer)
+        public short FinishHMAC(byte[] input_buffer, short pos, short len, byte[] buffer, short out_off)
+        {
+            hmac_session[0] = 0;
+            if (buffer.length < (short)(out_off + GetHMACLength()))
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+            if (hardware)
+                return getHMACSignature(method).sign(input_buffer, pos, len, buffer, out_off);
+
+            MessageDigest digest = getDigest(method);
+            short hash_len = digest.getLength();
+            digest.doFinal(input_buffer, pos, len, hmac_inner, (short) 0);
+            digest.reset();
+            digest.update(hmac_opad, (short) 0, GetBlockSize());
+            digest.doFinal(hmac_inner, (short) 0, hash_len, buffer, out_off);
+            return hash_len;
+        }
+
+        public short GenerateHMAC(byte[] input_buffer, short pos, short len, byte[] buffer, short out_off)
         {
             if (method == HMAC_HASH.NONE) {
                 ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
                 return 0;
             }
 
+            hmac_session[0] = 0;
+
+            if (hardware)
+                return GenerateHMAC_Signature(input_buffer, pos, len, buffer, out_off);
+
             switch (method) {
             case HMAC_HASH.SHA1:
-                return GenerateHMAC_SHA1(input_buffer, pos, len, buffer);
+                return GenerateHMAC_SHA1(input_buffer, pos, len, buffer, out_off);
             case HMAC_HASH.SHA256:
-                return GenerateHMAC_SHA256(input_buffer, pos, len, buffer);
+                return GenerateHMAC_SHA256(input_buffer, pos, len, buffer, out_off);
             case HMAC_HASH.SHA512:
-                return GenerateHMAC_SHA512(input_buffer, pos, len, buffer);
+                return GenerateHMAC_SHA512(input_buffer, pos, len, buffer, out_off);
             default:
                 ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
                 return 0;
             }
         }
 
-        public void FillRecord(byte[] buffer,
-                               short secret_off, byte secret_len,
-                               short name_off, byte name_len,
-                               byte new_method) throws ISOException
+        // HKDF-Extract (RFC 5869) with secret as IKM, PRK = HMAC(salt, secret)
+        public short ExtractKey(byte[] salt, short salt_off, short salt_len, byte[] buffer, short out_off)
         {
-            if (name_len > name.length || secret_len > secret.length) {
-                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            short hash_len = GetHMACLength();
+            hmac_session[0] = 0;
+            if (salt_len == 0) {
+                // Salt defaults to HashLen zeros, inner hash buffer is free until FinishHMAC
+                Util.arrayFillNonAtomic(hmac_inner, (short) 0, hash_len, (byte) 0);
+                salt = hmac_inner;
+                salt_off = 0;
+                salt_len = hash_len;
             }
+            SetKey(salt, salt_off, salt_len);
+            BeginHMAC();
+            return FinishHMAC(slab, data_offset, secret_length, buffer, out_off);
+        }
 
-            try {
-                switch (new_method) {
-                case HMAC_HASH.SHA1:
-                    digest = MessageDigest.getInstance(MessageDigest.ALG_SHA, false);
-                    break;
-                case HMAC_HASH.SHA256:
-                    digest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
-                    break;
-                case HMAC_HASH.SHA512:
-                    digest = MessageDigest.getInstance(MessageDigest.ALG_SHA_512, false);
-                    break;
-                default:
-                    ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+        // HKDF-Expand (RFC 5869), T(i) = HMAC(PRK, T(i-1) | info | i), OKM is first len bytes of T(1) | T(2) | ...
+        // Previous block is taken from and next block is written to tmp[tmp_off], block counter is at tmp[tmp_off + 64]
+        public void ExpandKey(byte[] prk, short prk_off, byte[] info, short info_off, short info_len,
+                              byte[] tmp, short tmp_off, byte[] buffer, short out_off, short len)
+        {
+            short hash_len = GetHMACLength();
+            short counter_off = (short)(tmp_off + 64);
+            SetKey(prk, prk_off, hash_len);
+            for (byte i = 1; len > 0; i++) {
+                BeginHMAC();
+                if (i > 1)
+                    UpdateHMAC(tmp, tmp_off, hash_len);
+                UpdateHMAC(info, info_off, info_len);
+                tmp[counter_off] = i;
+                FinishHMAC(tmp, counter_off, (short) 1, tmp, tmp_off);
+
+                short part = len < hash_len ? len : hash_len;
+                Util.arrayCopyNonAtomic(tmp, tmp_off, buffer, out_off, part);
+                out_off += part;
+                len -= part;
+            }
+        }
+
+        // RFC 4226 dynamic truncation of HMAC located at buffer[hmac_off]
+        // OTP digits are written to buffer[out_off], 4 bytes after them are used as temporary
+        private short TruncateOTP(byte[] buffer, short hmac_off, short hmac_len, short out_off)
+        {
+            short bin_off = (short)(out_off + MAX_OTP_DIGITS);
+            short offset = (short)(buffer[(short)(hmac_off + hmac_len - 1)] & 0x0F);
+            Util.arrayCopyNonAtomic(buffer, (short)(hmac_off + offset), buffer, bin_off, (short)4);
+            buffer[bin_off] &= 0x7F;
+
+            // OTP is the lowest decimal digits of 31-bit value,
+            // get them by dividing value by 10 byte by byte
+            for (short i = (short)(digits - 1); i >= 0; i--) {
+                short rem = 0;
+                for (short j = bin_off; j < (short)(bin_off + 4); j++) {
+                    short cur = (short)((rem << 8) | (buffer[j] & 0xFF));
+                    buffer[j] = (byte)(cur / 10);
+                    rem = (short)(cur % 10);
                 }
-            } catch (CryptoException e) {
-                if (e.getReason() == CryptoException.NO_SUCH_ALGORITHM) {
-                    ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+                buffer[(short)(out_off + i)] = (byte)('0' + rem);
+            }
+            return digits;
+        }
+
+        // OTP for 8 bytes moving factor located at input_buffer[pos]
+        private short GenerateOTP(byte[] input_buffer, short pos, byte[] buffer, short out_off)
+        {
+            short hmac_off = (short)(out_off + MAX_OTP_DIGITS + 4);
+            short hmac_len = GenerateHMAC(input_buffer, pos, (short)8, buffer, hmac_off);
+            return TruncateOTP(buffer, hmac_off, hmac_len, out_off);
+        }
+
+        public short GenerateHOTP(byte[] buffer, short out_off)
+        {
+            if (method == HMAC_HASH.NONE)
+                ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+            if (type != OTP_TYPE.HOTP)
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+            counter.Read(hmac_inner, (short)0);
+            short otp_len = GenerateOTP(hmac_inner, (short)0, buffer, out_off);
+
+            // HMAC overwrites hmac_inner, so next counter is prepared there after it
+            counter.Add((short)1, hmac_inner, (short)0);
+            return otp_len;
+        }
+
+        // Check HOTP located at buffer[otp_off] against counters c..c+window
+        // If buffer[otp_off + digits] contains next HOTP, both OTPs should match
+        // consecutive counters, as in RFC 4226 resynchronization
+        // Counter is advanced after matched OTP, offset of match is returned
+        // Counter copy is located at buffer[ctr_off], OTPs are computed at buffer[out_off]
+        public short VerifyHOTP(byte[] buffer, short otp_off, short otp_len, short window,
+                                short ctr_off, short out_off)
+        {
+            if (method == HMAC_HASH.NONE)
+                ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+            if (type != OTP_TYPE.HOTP)
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+            boolean resync = false;
+            if (otp_len == (short)(2 * digits))
+                resync = true;
+            else if (otp_len != digits)
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+            // For resync one more counter is computed to check second OTP
+            short last = resync ? (short)(window + 1) : window;
+            short next_off = (short)(otp_off + digits);
+            boolean prev_match = false;
+            counter.Read(buffer, ctr_off);
+            for (short i = 0; i <= last; i++) {
+                GenerateOTP(buffer, ctr_off, buffer, out_off);
+                incrementNumber(buffer, ctr_off, (short)8);
+
+                if (resync && prev_match &&
+                    Util.arrayCompare(buffer, out_off, buffer, next_off, digits) == 0) {
+                    counter.Write(buffer, ctr_off);
+                    return (short)(i - 1);
+                }
+
+                prev_match = Util.arrayCompare(buffer, out_off, buffer, otp_off, digits) == 0;
+                if (!resync && prev_match) {
+                    counter.Write(buffer, ctr_off);
+                    return i;
                 }
             }
 
-            JCSystem.beginTransaction();
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            return 0;
+        }
+
+        // RFC 6238 time step counter (T - T0) / X for Unix time located at buffer[time_off]
+        // Counter replaces time in buffer
+        private void GetTimeCounter(byte[] buffer, short time_off)
+        {
+            short borrow = 0;
+            for (short i = 7; i >= 0; i--) {
+                short pos = (short)(time_off + i);
+                short d = (short)((buffer[pos] & 0xFF) - (t0[i] & 0xFF) - borrow);
+                borrow = d < 0 ? (short)1 : (short)0;
+                buffer[pos] = (byte)d;
+            }
+            if (borrow != 0)
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+
+            // Long division bit by bit, so remainder stays in short.
+            // Remainder is below 2 * step, negative value means it exceeds 32767
+            short rem = 0;
+            for (short i = time_off; i < (short)(time_off + 8); i++) {
+                short b = (short)(buffer[i] & 0xFF);
+                short q = 0;
+                for (short bit = 7; bit >= 0; bit--) {
+                    rem = (short)((rem << 1) | ((b >> bit) & 1));
+                    q = (short)(q << 1);
+                    if (rem < 0 || rem >= step) {
+                        rem -= step;
+                        q |= 1;
+                    }
+                }
+                buffer[i] = (byte)q;
+            }
+        }
+
+        // TOTP for Unix time located at buffer[time_off] and window steps before and after it
+        // OTP digits are written to buffer[out_off], scratch of last OTP must end before time
+        public short GenerateTOTP(byte[] buffer, short time_off, byte window, short out_off, short max_len)
+        {
+            if (method == HMAC_HASH.NONE)
+                ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+            if (type != OTP_TYPE.TOTP)
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            if (window < 0)
+                ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+
+            short count = (short)(2 * window + 1);
+            short otp_len = (short)(count * digits);
+            short last_off = (short)(out_off + otp_len - digits);
+            if (otp_len > max_len ||
+                (short)(last_off + MAX_OTP_DIGITS + 4 + GetHMACLength()) > time_off)
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+            GetTimeCounter(buffer, time_off);
+            for (short i = 0; i < window; i++) {
+                if (!decrementNumber(buffer, time_off, (short)8))
+                    ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            }
+
+            for (short i = 0; i < count; i++) {
+                GenerateOTP(buffer, time_off, buffer, (short)(out_off + i * digits));
+                incrementNumber(buffer, time_off, (short)8);
+            }
+            return otp_len;
+        }
+
+        // Returns bytes which are appended to the slab when record is filled,
+        // data which fits to the space of the record is written in place
+        public short FillRecord(byte[] buffer,
+                                short secret_off, byte secret_len,
+                                short name_off, byte name_len,
+                                byte new_method, boolean software_only,
+                                short params_off, short params_len,
+                                byte mode) throws ISOException
+        {
+            if (name_len < 0 || name_len > maxSecretNameLength ||
+                secret_len < 0 || secret_len > MAX_SECRET_SIZE) {
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+
+            short new_length = (short)(secret_len + name_len);
+            boolean append = new_length > data_capacity;
+
+            // OTP parameters have form <TYPE> [<DIGITS> <COUNTER>] for HOTP
+            // and <TYPE> <DIGITS> <STEP> <T0> for TOTP
+            // Secret without parameters is used for raw HMAC
+            byte new_type = OTP_TYPE.HMAC;
+            byte new_digits = 0;
+            short new_step = 0;
+            if (params_len > 0)
+                new_type = buffer[params_off];
+            switch (new_type) {
+            case OTP_TYPE.HMAC:
+                if (params_len > 1)
+                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                break;
+            case OTP_TYPE.HOTP:
+                if (params_len != 10)
+                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                new_digits = buffer[(short)(params_off + 1)];
+                if (new_digits < MIN_OTP_DIGITS || new_digits > MAX_OTP_DIGITS)
+                    ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+                break;
+            case OTP_TYPE.TOTP:
+                if (params_len != 12)
+                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                new_digits = buffer[(short)(params_off + 1)];
+                if (new_digits < MIN_OTP_DIGITS || new_digits > MAX_OTP_DIGITS)
+                    ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+                new_step = Util.getShort(buffer, (short)(params_off + 2));
+                if (new_step <= 0)
+                    ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+                break;
+            default:
+                ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+            }
+
+            // Prefer HMAC signature of the card, fallback to digest
+            // Empty keys are not accepted by all cards, so they also use digest
+            boolean new_hardware = !software_only && secret_len > 0 &&
+                                   hmac_key != null && getHMACSignature(new_method) != null;
+
+            // Digests are shared by all records and created once at install
+            if (!new_hardware && getDigest(new_method) == null)
+                ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+
+            if (mode == SAVE_MODE.CHECK)
+                return append ? new_length : 0;
+
+            // Counters are created once and kept when record is changed
+            // They are created before transaction, object created in aborted transaction
+            // would not be referenced, and cards without garbage collection would leak it
+            if (new_type == OTP_TYPE.HOTP && counter == null)
+                counter = new RingCounter((short)8, COUNTER_CELLS);
+            if (new_type == OTP_TYPE.TOTP && t0 == null)
+                t0 = new byte[8];
+            if (uses == null)
+                uses = new RingCounter((short)4, USES_CELLS);
+
+            if (mode == SAVE_MODE.ALLOCATE)
+                return append ? new_length : 0;
+
+            // Caller compacts slab before, so appended data fits after slab_top
+            if (append && ((short)(slab_top + new_length) > slab.length ||
+                           slab_order_count == (short)slab_order.length))
+                ISOException.throwIt(ISO7816.SW_FILE_FULL);
+
+            Uncache();
+
+            // Several records may be filled in one transaction of caller
+            // Old secret is overwritten in place too, so it is kept if card is torn
+            boolean own_transaction = JCSystem.getTransactionDepth() == 0;
+            if (own_transaction)
+                JCSystem.beginTransaction();
+            if (IsUsed()) {
+                indexRemove(id);
+                slab_used -= GetDataLength();
+            } else {
+                slots_used++;
+            }
             method = new_method;
-            Util.arrayCopyNonAtomic(buffer, secret_off, secret, (short)0, secret_len);
-            Util.arrayCopyNonAtomic(buffer, name_off, name, (short)0, name_len);
+            hardware = new_hardware;
+            type = new_type;
+            digits = new_digits;
+            step = new_step;
+            if (type == OTP_TYPE.HOTP)
+                counter.Write(buffer, (short)(params_off + 2));
+            if (type == OTP_TYPE.TOTP)
+                Util.arrayCopy(buffer, (short)(params_off + 4), t0, (short)0, (short)8);
+            if (append) {
+                // Longer data is appended to the slab, old space becomes a hole
+                // which is removed by the next compaction
+                if (data_capacity != 0)
+                    slab_order[order_pos] = INDEX_EMPTY;
+                data_offset = slab_top;
+                data_capacity = new_length;
+                order_pos = slab_order_count;
+                slab_order[slab_order_count] = id;
+                slab_order_count++;
+                slab_top += new_length;
+            }
+            Util.arrayCopy(buffer, secret_off, slab, data_offset, secret_len);
+            Util.arrayCopy(buffer, name_off, slab, (short)(data_offset + secret_len), name_len);
+            secret_length = secret_len;
             name_length = name_len;
-            // We always store 64 bytes, because we do XOR during HMAC
-            // So if we have secret less 64 bytes, it can be discovered
-            // By power usage or delays
-            for (short i = secret_len; i < 64; i++)
-                secret[i] = 0;
-            JCSystem.commitTransaction();
+            slab_used += new_length;
+            uses.Clear();
+            indexInsert(id);
+            if (own_transaction)
+                JCSystem.commitTransaction();
+            return append ? new_length : 0;
         }
 
+        // Space of record becomes a hole, it is reused after compaction
         public void Clear()
         {
-            JCSystem.beginTransaction();
+            Uncache();
+            boolean own_transaction = JCSystem.getTransactionDepth() == 0;
+            if (own_transaction)
+                JCSystem.beginTransaction();
+            if (IsUsed()) {
+                indexRemove(id);
+                slab_used -= GetDataLength();
+                slots_used--;
+            }
+            if (data_capacity != 0)
+                slab_order[order_pos] = INDEX_EMPTY;
+            data_capacity = 0;
+            secret_length = 0;
             name_length = 0;
             method = HMAC_HASH.NONE;
-            digest = null;
+            hardware = false;
+            type = OTP_TYPE.HMAC;
+            if (uses != null)
+                uses.Clear();
+            if (own_transaction)
+                JCSystem.commitTransaction();
+        }
+
+        public void AddUses(short count)
+        {
+            uses.Add(count, hmac_inner, (short)0);
+        }
+
+        // Copy uses to buffer[off], returns offset after them
+        public short GetUses(byte[] buffer, short off)
+        {
+            return uses.Read(buffer, off);
+        }
+
+        public short GetDataLength()
+        {
+            return (short)(secret_length + name_length);
+        }
+
+        // Move secret and name to lower offset of slab, destination may overlap them,
+        // space of record is shrinked to its data
+        public void MoveData(short new_offset, short new_order_pos)
+        {
+            JCSystem.beginTransaction();
+            Util.arrayCopy(slab, data_offset, slab, new_offset, GetDataLength());
+            data_offset = new_offset;
+            data_capacity = GetDataLength();
+            slab_order[new_order_pos] = id;
+            order_pos = new_order_pos;
             JCSystem.commitTransaction();
         }
 
+        // Record owns space at slab_order[pos], entries left by torn compaction are skipped
+        public boolean HasOrder(short pos)
+        {
+            return data_capacity != 0 && order_pos == pos;
+        }
+
         public boolean IsUsed()
         {
             return method != HMAC_HASH.NONE;
@@ -207,25 +953,70 @@ public class OTPCard extends Applet {
             return method;
         }
 
+        public byte GetType()
+        {
+            return type;
+        }
+
+        public short GetNameHash()
+        {
+            return nameHash(slab, (short)(data_offset + secret_length), name_length);
+        }
+
+        public boolean HasName(byte[] buffer, short name_off, short name_len)
+        {
+            return name_length == name_len &&
+                   Util.arrayCompare(slab, (short)(data_offset + secret_length), buffer, name_off, name_len) == 0;
+        }
+
         public byte[] GetName(short[] posoff)
         {
-            posoff[0] = 0;
+            posoff[0] = (short)(data_offset + secret_length);
             posoff[1] = name_length;
-            return name;
+            return slab;
         }
     }
 
     // Secrets
     private OTPRecord[] otp_records;
 
+    // Open addressing hash table of used secrets by name, with linear probing
+    // Contains secret ids, it is at least twice longer than amount of secrets,
+    // so there is always an empty entry to stop probing
+    private short[] name_index;
+    private short name_index_mask;
+    private static final short INDEX_EMPTY = -1;
+
+    // Secrets and names of all records, packed from the start of array
+    // Space after slab_top is free, holes before it are left by updated
+    // records until the next compaction
+    private byte[] slab;
+    private short slab_top;
+    // Bytes of slab used by secrets and names, holes are not counted
+    private short slab_used;
+    private short slots_used;
+    // Ids of records in order of their offsets in slab, so compaction is done in one pass
+    // Deleted and moved records leave INDEX_EMPTY entries, which are removed by compaction
+    private short[] slab_order;
+    private short slab_order_count;
+
     // Default data
     private static final byte[] PIN_DEFAULT = {'1', '2', '3', '4', '5', '6'};
     private static final byte[] ADMIN_PIN_DEFAULT = {'1', '2', '3', '4', '5', '6', '7', '8'};
     private static final byte MAX_PIN_SIZE = 31;
     private static final byte MIN_PIN_SIZE = 6;
+    private static final byte MAX_SECRET_SIZE = 64;
+    // Every secret takes a record, 4 to 8 bytes of name index and 4 bytes of slab_order,
+    // it is more than persistent memory of most cards can give to larger amount of them
+    private static final short MAX_SECRETS = 0x400;
+    private static final short MAX_SHORT_RESPONSE_SIZE = 256;
+    private static final byte MIN_OTP_DIGITS = 6;
+    private static final byte MAX_OTP_DIGITS = 8;
+    // Tags and values of extended GET_INFO
+    private static final short INFO_EXTENDED_SIZE = 7 * 2 + 4 + 6 + 4 + 4 + 12 + 3 + 8;
 
     // Data configured from parameters
-    private final byte maxSecrets;
+    private final short maxSecrets;
     private final byte maxSecretNameLength;
     private final byte[] serial_number;
 
@@ -234,22 +1025,99 @@ public class OTPCard extends Applet {
     private final byte sha256support;
     private final byte sha512support;
 
+    // Digests, shared by all records
+    private final MessageDigest sha1_digest;
+    private final MessageDigest sha256_digest;
+    private final MessageDigest sha512_digest;
+
+    // HMAC signatures of the card, null if not supported
+    private final Signature sha1_hmac;
+    private final Signature sha256_hmac;
+    private final Signature sha512_hmac;
+    private final boolean hmac_signature_support;
+    // Key of HMAC signature, loaded from slab when other record is used
+    private final HMACKey hmac_key;
+
     // Persistent data
     private OwnerPIN PIN;
     private OwnerPIN AdminPIN;
 
     // Temporary data
     private short[] readed;
+    // Inner hash of HMAC, shared by all records, because
+    // only one HMAC is computed at a time
+    private byte[] hmac_inner;
+    // Secret XOR-ed with ipad and opad, 128 bytes is block size of SHA-512
+    private byte[] hmac_ipad;
+    private byte[] hmac_opad;
+    // Id + 1 of record, which key is in hmac_key or hmac_ipad and hmac_opad, 0 if none
+    private short[] cached_record;
+    // Id + 1 of record with started HMAC_STREAM, 0 if none
+    private short[] hmac_session;
+    // PBKDF2 between APDUs: id + 1 of record (0 if none), current block, amount of blocks,
+    // salt length, key length, iterations per APDU
+    private short[] pbkdf2_state;
+    // PBKDF2 U of last iteration, derived key, salt with block number,
+    // iteration count and iterations left for current block
+    private byte[] pbkdf2_data;
+    private static final short PBKDF2_MAX_SALT = 64;
+    private static final short PBKDF2_MAX_KEY = 128;
+    private static final short PBKDF2_U = 0;
+    private static final short PBKDF2_KEY = 64;
+    // Key area is rounded up to whole SHA1 blocks
+    private static final short PBKDF2_SALT = 204;
+    private static final short PBKDF2_ITERATIONS = 272;
+    private static final short PBKDF2_LEFT = 276;
+    private static final short PBKDF2_SIZE = 280;
+    // Id + 1 of record, which PRK is kept after HKDF, 0 if none
+    private short[] hkdf_record;
+    // HKDF PRK, last block of OKM, block counter and info
+    private byte[] hkdf_data;
+    private static final short HKDF_MAX_SALT = 64;
+    private static final short HKDF_MAX_INFO = 128;
+    private static final short HKDF_PRK = 0;
+    private static final short HKDF_BLOCK = 64;
+    private static final short HKDF_INFO = 129;
+    private static final short HKDF_SIZE = 257;
+
+    // Usage statistics are counted in RAM and added to persistent counters on deselect,
+    // GET_STATS and before the next command which doesn't compute HMAC or OTP after one
+    // of accumulators reaches STATS_FLUSH_LIMIT, so computations never write persistent
+    // memory for counting. Deselect is not called when card loses power, so counts
+    // since the last flush are lost then
+    // Counters of INS 0x00..0x1F, 4 bytes big endian each, PIN is counted at 0x00
+    private byte[] stats_ins;
+    // Uses of secrets, which were not counted per secret
+    private byte[] stats_untracked;
+    // RAM accumulators, saturated at 0x7FFF while only computations are sent
+    private short[] stats_ins_ram;
+    // Pairs of id + 1 (0 if free) and uses of recently used secrets
+    private short[] stats_slots_ram;
+    private short[] stats_untracked_ram;
+    // Set when accumulator reaches STATS_FLUSH_LIMIT
+    private boolean[] stats_flush;
+    private static final short STATS_INS = 0x20;
+    private static final short STATS_SLOTS = 8;
+    private static final short STATS_FLUSH_LIMIT = 0x100;
+    // Cells of wear levelled counters. HOTP counter is written on every OTP,
+    // so each its cell gets 1/8 of writes, uses are written once per session
+    private static final short COUNTER_CELLS = 8;
+    private static final short USES_CELLS = 4;
 
     protected OTPCard(byte[] buf, short offData, byte lenData) {
-        if (lenData != 8) {
+        if (lenData != 9 && lenData != 11) {
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
 
         short off = offData;
-        maxSecrets = buf[off++];
+        maxSecrets = Util.getShort(buf, off);
+        off += 2;
         maxSecretNameLength = buf[off++];
 
+        // Name index has at least 2 * maxSecrets entries, and its size is power of 2
+        if (maxSecrets <= 0 || maxSecrets > MAX_SECRETS || maxSecretNameLength < 0)
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+
         byte PIN_reset_count = buf[off++];
         byte AdminPIN_reset_count = buf[off++];
 
@@ -257,9 +1125,34 @@ public class OTPCard extends Applet {
         for (short i = 0; i < 4; i++)
             serial_number[i] = buf[off++];
 
-        sha1support = 1;
-        sha256support = 0;
-        sha512support = 0;
+        // Optional slab size, by default every record can have secret and name of max length,
+        // as far as it fits to the longest array
+        short record_size = (short)(MAX_SECRET_SIZE + maxSecretNameLength);
+        short slab_size = 0x7FFF;
+        if (maxSecrets <= (short)(0x7FFF / record_size))
+            slab_size = (short)(maxSecrets * record_size);
+        if (lenData == 11)
+            slab_size = Util.getShort(buf, off);
+        if (slab_size < 0)
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+
+        // Created once, because cards without garbage collection
+        // would leak memory on every secret update otherwise
+        sha1_digest = createDigest(MessageDigest.ALG_SHA);
+        sha256_digest = createDigest(MessageDigest.ALG_SHA_256);
+        sha512_digest = createDigest(MessageDigest.ALG_SHA_512);
+
+        sha1_hmac = createSignature(Signature.ALG_HMAC_SHA1);
+        sha256_hmac = createSignature(Signature.ALG_HMAC_SHA_256);
+        sha512_hmac = createSignature(Signature.ALG_HMAC_SHA_512);
+        hmac_signature_support = sha1_hmac != null || sha256_hmac != null || sha512_hmac != null;
+        hmac_key = hmac_signature_support ? createKey(KeyBuilder.TYPE_HMAC_TRANSIENT_DESELECT,
+                                                      KeyBuilder.LENGTH_HMAC_SHA_1_BLOCK_64) : null;
+
+        // Algorithm is supported if either HMAC signature or digest is available
+        sha1support = (sha1_digest != null || sha1_hmac != null) ? (byte)1 : (byte)0;
+        sha256support = (sha256_digest != null || sha256_hmac != null) ? (byte)1 : (byte)0;
+        sha512support = (sha512_digest != null || sha512_hmac != null) ? (byte)1 : (byte)0;
 
         PIN = new OwnerPIN(PIN_reset_count, MAX_PIN_SIZE);
         PIN.update(PIN_DEFAULT, (short)0, (byte)PIN_DEFAULT.length);
@@ -267,13 +1160,230 @@ public class OTPCard extends Applet {
         AdminPIN = new OwnerPIN(AdminPIN_reset_count, MAX_PIN_SIZE);
         AdminPIN.update(ADMIN_PIN_DEFAULT, (short)0, (byte)ADMIN_PIN_DEFAULT.length);
 
+        hmac_inner = JCSystem.makeTransientByteArray((short)64, JCSystem.CLEAR_ON_DESELECT);
+        hmac_ipad = JCSystem.makeTransientByteArray((short)128, JCSystem.CLEAR_ON_DESELECT);
+        hmac_opad = JCSystem.makeTransientByteArray((short)128, JCSystem.CLEAR_ON_DESELECT);
+        cached_record = JCSystem.makeTransientShortArray((short)1, JCSystem.CLEAR_ON_DESELECT);
+        hmac_session = JCSystem.makeTransientShortArray((short)1, JCSystem.CLEAR_ON_DESELECT);
+        pbkdf2_state = JCSystem.makeTransientShortArray((short)6, JCSystem.CLEAR_ON_DESELECT);
+        pbkdf2_data = JCSystem.makeTransientByteArray(PBKDF2_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        hkdf_record = JCSystem.makeTransientShortArray((short)1, JCSystem.CLEAR_ON_DESELECT);
+        hkdf_data = JCSystem.makeTransientByteArray(HKDF_SIZE, JCSystem.CLEAR_ON_DESELECT);
+
+        stats_ins = new byte[(short)(4 * STATS_INS)];
+        stats_untracked = new byte[4];
+        stats_ins_ram = JCSystem.makeTransientShortArray(STATS_INS, JCSystem.CLEAR_ON_DESELECT);
+        stats_slots_ram = JCSystem.makeTransientShortArray((short)(2 * STATS_SLOTS), JCSystem.CLEAR_ON_DESELECT);
+        stats_untracked_ram = JCSystem.makeTransientShortArray((short)1, JCSystem.CLEAR_ON_DESELECT);
+        stats_flush = JCSystem.makeTransientBooleanArray((short)1, JCSystem.CLEAR_ON_DESELECT);
+
+        slab = new byte[slab_size];
+        slab_top = 0;
+        slab_used = 0;
+        slots_used = 0;
+        // Every record has at most one entry and one more before compaction
+        slab_order = new short[(short)(2 * maxSecrets)];
+        slab_order_count = 0;
+
+        short index_size = 2;
+        while (index_size < (short)(2 * maxSecrets))
+            index_size <<= 1;
+        name_index = new short[index_size];
+        name_index_mask = (short)(index_size - 1);
+        for (short i = 0; i < index_size; i++)
+            name_index[i] = INDEX_EMPTY;
+
         otp_records = new OTPRecord[maxSecrets];
         for (short i = 0; i < maxSecrets; i++)
-            otp_records[i] = new OTPRecord(maxSecretNameLength);
+            otp_records[i] = new OTPRecord(i);
         
         readed = JCSystem.makeTransientShortArray((short)3, JCSystem.CLEAR_ON_DESELECT);
     }
 
+    // Increment big endian unsigned number
+    private static void incrementNumber(byte[] buffer, short off, short len)
+    {
+        for (short i = (short)(off + len - 1); i >= off; i--) {
+            buffer[i]++;
+            if (buffer[i] != 0)
+                return;
+        }
+    }
+
+    // Decrement big endian unsigned number, returns false if it was zero
+    private static boolean decrementNumber(byte[] buffer, short off, short len)
+    {
+        for (short i = (short)(off + len - 1); i >= off; i--) {
+            buffer[i]--;
+            if (buffer[i] != (byte)0xFF)
+                return true;
+        }
+        return false;
+    }
+
+    // Add value to big endian unsigned number
+    private static void addNumber(byte[] buffer, short off, short len, short value)
+    {
+        short carry = value;
+        for (short i = (short)(off + len - 1); i >= off && carry != 0; i--) {
+            short sum = (short)((buffer[i] & 0xFF) + (carry & 0xFF));
+            buffer[i] = (byte) sum;
+            carry = (short)(((carry >> 8) & 0xFF) + (sum >> 8));
+        }
+    }
+
+    private static boolean isZero(byte[] buffer, short off, short len)
+    {
+        for (short i = off; i < (short)(off + len); i++) {
+            if (buffer[i] != 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static short nameHash(byte[] buffer, short off, short len)
+    {
+        short hash = 0;
+        for (short i = off; i < (short)(off + len); i++)
+            hash = (short)(hash * 31 + (buffer[i] & 0xFF));
+        return (short)(hash ^ (hash >> 7));
+    }
+
+    // Secret with name located at buffer[name_off], -1 if not found
+    private short findSecret(byte[] buffer, short name_off, short name_len)
+    {
+        short found = -1;
+        short i = (short)(nameHash(buffer, name_off, name_len) & name_index_mask);
+        while (name_index[i] != INDEX_EMPTY) {
+            short id = name_index[i];
+            if ((found < 0 || id < found) && otp_records[id].HasName(buffer, name_off, name_len))
+                found = id;
+            i = (short)((i + 1) & name_index_mask);
+        }
+        return found;
+    }
+
+    // Called inside transaction, after name of secret is set
+    private void indexInsert(short id)
+    {
+        short i = (short)(otp_records[id].GetNameHash() & name_index_mask);
+        while (name_index[i] != INDEX_EMPTY)
+            i = (short)((i + 1) & name_index_mask);
+        name_index[i] = id;
+    }
+
+    // Called inside transaction, before name of secret is changed
+    // Following entries are shifted back, so probing never stops too early
+    private void indexRemove(short id)
+    {
+        short i = (short)(otp_records[id].GetNameHash() & name_index_mask);
+        while (name_index[i] != id)
+            i = (short)((i + 1) & name_index_mask);
+
+        short j = i;
+        while (true) {
+            j = (short)((j + 1) & name_index_mask);
+            short other = name_index[j];
+            if (other == INDEX_EMPTY)
+                break;
+            // Entry can't be moved before its hash position
+            short k = (short)(otp_records[other].GetNameHash() & name_index_mask);
+            if (i <= j ? (i < k && k <= j) : (i < k || k <= j))
+                continue;
+            name_index[i] = other;
+            i = j;
+        }
+        name_index[i] = INDEX_EMPTY;
+    }
+
+    // Move data of records to the start of slab in order of offsets,
+    // so all holes are joined into free space after slab_top
+    // Every record is moved in own transaction, so compaction costs one transaction per record,
+    // but doesn't need commit buffer for whole slab. If it is torn, slab is left half-compacted:
+    // moved records have new offset and order position, the rest stay at old place, and
+    // slab_top and slab_order_count are old until the last transaction. Records are moved only
+    // down and to order positions already passed, so no secret is overwritten, stale order
+    // entries are skipped by HasOrder, and next compaction finishes the work
+    private void compactSlab()
+    {
+        short top = 0;
+        short count = 0;
+        for (short pos = 0; pos < slab_order_count; pos++) {
+            short id = slab_order[pos];
+            if (id == INDEX_EMPTY || !otp_records[id].HasOrder(pos))
+                continue;
+            OTPRecord record = otp_records[id];
+            record.MoveData(top, count);
+            top += record.GetDataLength();
+            count++;
+        }
+        JCSystem.beginTransaction();
+        slab_top = top;
+        slab_order_count = count;
+        JCSystem.commitTransaction();
+    }
+
+    private static MessageDigest createDigest(byte algorithm)
+    {
+        try {
+            return MessageDigest.getInstance(algorithm, false);
+        } catch (CryptoException e) {
+            if (e.getReason() != CryptoException.NO_SUCH_ALGORITHM)
+                throw e;
+        }
+        return null;
+    }
+
+    private static HMACKey createKey(byte type, short length)
+    {
+        try {
+            return (HMACKey) KeyBuilder.buildKey(type, length, false);
+        } catch (CryptoException e) {
+            if (e.getReason() != CryptoException.NO_SUCH_ALGORITHM)
+                throw e;
+        }
+        return null;
+    }
+
+    private static Signature createSignature(byte algorithm)
+    {
+        try {
+            return Signature.getInstance(algorithm, false);
+        } catch (CryptoException e) {
+            if (e.getReason() != CryptoException.NO_SUCH_ALGORITHM)
+                throw e;
+        }
+        return null;
+    }
+
+    private Signature getHMACSignature(byte method)
+    {
+        switch (method) {
+        case HMAC_HASH.SHA1:
+            return sha1_hmac;
+        case HMAC_HASH.SHA256:
+            return sha256_hmac;
+        case HMAC_HASH.SHA512:
+            return sha512_hmac;
+        default:
+            return null;
+        }
+    }
+
+    private MessageDigest getDigest(byte method)
+    {
+        switch (method) {
+        case HMAC_HASH.SHA1:
+            return sha1_digest;
+        case HMAC_HASH.SHA256:
+            return sha256_digest;
+        case HMAC_HASH.SHA512:
+            return sha512_digest;
+        default:
+            return null;
+        }
+    }
+
     public static void install(byte[] buf, short off, byte bLength) {
         short pos = off;
         // find AID
@@ -292,6 +1402,10 @@ public class OTPCard extends Applet {
         applet.register(buf, offAID, lenAID);
     }
 
+    public void deselect() {
+        flushStats();
+    }
+
     public void process(APDU apdu) throws ISOException {
         byte[] buffer = apdu.getBuffer();
 
@@ -300,19 +1414,52 @@ public class OTPCard extends Applet {
             return;
         }
 
-        switch (buffer[ISO7816.OFFSET_INS]) {
+        // Full accumulators are flushed before command, which doesn't compute HMAC or OTP,
+        // so persistent write is never added to computation
+        byte ins = buffer[ISO7816.OFFSET_INS];
+        if (stats_flush[0] && !isComputation(ins))
+            flushStats();
+        countINS(ins);
+        switch (ins) {
             case INS.PIN:
                 checkPIN(apdu);
                 break;
             case INS.HMAC:
                 generateHMAC(apdu);
                 break;
+            case INS.BATCH_HMAC:
+                generateBatchHMAC(apdu);
+                break;
+            case INS.HMAC_STREAM:
+                streamHMAC(apdu);
+                break;
+            case INS.PBKDF2:
+                derivePBKDF2(apdu);
+                break;
+            case INS.HKDF:
+                deriveHKDF(apdu);
+                break;
+            case INS.HOTP:
+                generateHOTP(apdu);
+                break;
+            case INS.VERIFY_HOTP:
+                verifyHOTP(apdu);
+                break;
+            case INS.TOTP:
+                generateTOTP(apdu);
+                break;
             case INS.GET_SECRET_STATUS:
                 getSecretStatus(apdu);
                 break;
+            case INS.LIST_SECRETS:
+                listSecrets(apdu);
+                break;
             case INS.SAVE_NEW_SECRET:
                 storeSecret(apdu);
                 break;
+            case INS.SAVE_SECRETS:
+                storeSecrets(apdu);
+                break;
             case INS.DELETE_SECRET:
                 clearSecret(apdu);
                 break;
@@ -330,118 +1477,617 @@ public class OTPCard extends Applet {
             case INS.GET_INFO:
                 getInfo(apdu);
                 break;
+            case INS.GET_STATS:
+                getStats(apdu);
+                break;
             default:
                 ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
         }
     }
 
-    /**
-     * 
-     * @param buffer buffer with data
-     * @param offset offset of target area of buffer
-     * @param len length of target area of buffer
-     * @param position position in target area of buffer
-     * @return position of data begin, length of data
-     * @throws ISOException
-     */
-    private void getRecord(byte[] buffer, short offset, short len, short position, short[] out) throws ISOException
+    /**
+     * 
+     * @param buffer buffer with data
+     * @param offset offset of target area of buffer
+     * @param len length of target area of buffer
+     * @param position position in target area of buffer
+     * @return position of data begin, length of data
+     * @throws ISOException
+     */
+    private void getRecord(byte[] buffer, short offset, short len, short position, short[] out) throws ISOException
+    {
+        if ((short)(offset + len) > buffer.length)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        if (position >= len)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        short rec_len = (short)(buffer[(short)(offset + position)] & 0xFF);
+        if ((short)(position + 1 + rec_len) > len)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        out[0] = (short)(position + 1);
+        out[1] = rec_len;
+        out[2] = (short)(position + 1 + rec_len);
+    }
+
+    /**
+     * Receive whole command data, both short and extended Lc are supported
+     *
+     * @param apdu APDU
+     * @return position of data begin, length of data, position of data end
+     * @throws ISOException
+     */
+    private void getReceivedData(APDU apdu, short[] out) throws ISOException
+    {
+        byte[] buffer = apdu.getBuffer();
+        short received = apdu.setIncomingAndReceive();
+        short off_lc_data = apdu.getOffsetCdata();
+        short lc_len = apdu.getIncomingLength();
+
+        // Command data should fit to APDU buffer
+        if (lc_len > (short)(getBufferLength(buffer) - off_lc_data))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        while (received < lc_len)
+            received += apdu.receiveBytes((short)(off_lc_data + received));
+
+        out[0] = off_lc_data;
+        out[1] = lc_len;
+        out[2] = (short)(off_lc_data + lc_len);
+    }
+
+    // Java Card arrays are not longer than 32767 bytes,
+    // but simulators may give longer extended APDU buffer
+    private static short getBufferLength(byte[] buffer)
+    {
+        if (buffer.length > 0x7FFF)
+            return 0x7FFF;
+        return (short)buffer.length;
+    }
+
+    // Short APDU response is limited by 256 bytes,
+    // extended APDU response is limited by APDU buffer
+    private static short getMaxResponseLength(APDU apdu)
+    {
+        if (apdu.getOffsetCdata() == ISO7816.OFFSET_EXT_CDATA)
+            return getBufferLength(apdu.getBuffer());
+        return MAX_SHORT_RESPONSE_SIZE;
+    }
+
+    /*private short getEClength(byte[] buffer, short lc_len)
+    {
+        short ec_offset = (short)(ISO7816.OFFSET_LC + 1 + lc_len);
+        if (ec_offset >= buffer.length)
+            return 0;
+        return buffer[ec_offset];
+    }*/
+
+    private void getPin(byte[] buffer, short lc_offset, short lc_len, short pos, short[] out) throws ISOException
+    {
+        getRecord(buffer, lc_offset, lc_len, pos, out);
+    }
+
+    private void getNumber(byte[] buffer, short lc_offset, short lc_len, short pos, short[] out) throws ISOException
+    {
+        if (pos >= lc_len)
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        out[0] = pos;
+        out[1] = (short)1;
+        out[2] = (short)(pos + 1);
+    }
+
+    // Secret id is 2 bytes big endian, ids out of range are rejected
+    private short getId(byte[] buffer, short lc_offset, short lc_len, short pos, short[] out) throws ISOException
+    {
+        if ((short)(pos + 2) > lc_len)
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        short id = Util.getShort(buffer, (short)(lc_offset + pos));
+        if (id < 0 || id >= otp_records.length)
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        out[0] = pos;
+        out[1] = (short)2;
+        out[2] = (short)(pos + 2);
+        return id;
+    }
+
+    private static boolean isSecretByName(byte[] buffer)
+    {
+        return (buffer[ISO7816.OFFSET_P1] & SECRET_FLAGS.BY_NAME) != 0;
+    }
+
+    // Secret is given either by <SECRET ID> or by <NAME LEN> NAME
+    private short getSecretId(byte[] buffer, short lc_offset, short lc_len, short pos, boolean by_name, short[] out) throws ISOException
+    {
+        if (!by_name)
+            return getId(buffer, lc_offset, lc_len, pos, out);
+
+        getRecord(buffer, lc_offset, lc_len, pos, out);
+        short id = findSecret(buffer, (short)(lc_offset + out[0]), out[1]);
+        if (id < 0)
+            ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+        return id;
+    }
+
+    private void checkPIN(APDU apdu)
+    {
+        byte[] buffer = apdu.getBuffer();
+        getReceivedData(apdu, readed);
+        short off_lc_data = readed[0];
+        short lc_len = readed[1];
+        
+        // Transmitted data is located at ISO7816.OFFSET_LC+1 and has length "lc"
+        // Data has form <PIN_LEN> PIN [<SECRET ID> ARGUMENTS]
+        // ARGUMENTS depend on secret type, they are the same as for HMAC, HOTP and TOTP
+        // Returned array with hash result or OTP digits, if secret is given
+        getPin(buffer, off_lc_data, lc_len, (short)0, readed);
+        short cur_pin_pos = readed[0];
+        short cur_pin_len = readed[1];
+        short pos = readed[2];
+
+        short attempts = PIN.getTriesRemaining();
+        if (attempts == 0)
+            ISOException.throwIt(ISO7816.SW_FILE_INVALID);
+
+        if (!PIN.check(buffer, (short)(off_lc_data + cur_pin_pos), (byte)cur_pin_len))
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+
+        if (pos == lc_len)
+            return;
+
+        short id = getSecretId(buffer, off_lc_data, lc_len, pos, isSecretByName(buffer), readed);
+        pos = readed[2];
+
+        if (!otp_records[id].IsUsed())
+            ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+
+        switch (otp_records[id].GetType()) {
+        case OTP_TYPE.HMAC:
+            sendHMAC(apdu, off_lc_data, lc_len, pos, id);
+            break;
+        case OTP_TYPE.HOTP:
+            sendHOTP(apdu, id);
+            break;
+        case OTP_TYPE.TOTP:
+            sendTOTP(apdu, off_lc_data, lc_len, pos, id);
+            break;
+        default:
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+    }
+
+    private void generateHMAC(APDU apdu)
+    {
+        if (!PIN.isValidated())
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+
+        byte[] buffer = apdu.getBuffer();
+
+        getReceivedData(apdu, readed);
+        short off_lc_data = readed[0];
+        short lc_len = readed[1];
+        //short ec_len = getEClength(buffer, lc_len);
+
+        // Transmitted data is located at ISO7816.OFFSET_LC+1 and has length "lc"
+        // Data has form <SECRET ID> <CHALLENGE LEN> CHALLENGE
+        // Returned array with hash result
+        short id = getSecretId(buffer, off_lc_data, lc_len, (short)0, isSecretByName(buffer), readed);
+        sendHMAC(apdu, off_lc_data, lc_len, readed[2], id);
+    }
+
+    // Data after secret id has form <CHALLENGE LEN> CHALLENGE
+    private void sendHMAC(APDU apdu, short off_lc_data, short lc_len, short pos, short id)
+    {
+        byte[] buffer = apdu.getBuffer();
+
+        getRecord(buffer, off_lc_data, lc_len, pos, readed);
+        short challenge_pos = readed[0];
+        short challenge_len = readed[1];
+        pos = readed[2];
+
+        // HMAC of arbitrary challenge would reveal next OTPs
+        if (otp_records[id].GetType() != OTP_TYPE.HMAC)
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+        short hmac_len = otp_records[id].GenerateHMAC(buffer, (short)(off_lc_data + challenge_pos), challenge_len, buffer, (short)0);
+        countUse(id);
+        apdu.setOutgoingAndSend((short) 0, hmac_len);
+    }
+
+    private void generateBatchHMAC(APDU apdu)
+    {
+        if (!PIN.isValidated())
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+
+        byte[] buffer = apdu.getBuffer();
+
+        getReceivedData(apdu, readed);
+        short off_lc_data = readed[0];
+        short lc_len = readed[1];
+
+        // Transmitted data is located at ISO7816.OFFSET_LC+1 and has length "lc"
+        // Data has form <SECRET ID> <CHALLENGE LEN> CHALLENGE, repeated for each HMAC
+        // Returned array with concatenated hash results
+        //
+        // Hash results are longer than requests, so requests are moved to the
+        // end of the buffer, and results are written from its beginning
+        short off_requests = (short)(getBufferLength(buffer) - lc_len);
+        boolean by_name = isSecretByName(buffer);
+        Util.arrayCopyNonAtomic(buffer, off_lc_data, buffer, off_requests, lc_len);
+
+        // Check all requests before computing anything, and ensure
+        // that result never overwrites requests which are not processed yet
+        short max_anslen = getMaxResponseLength(apdu);
+        short pos = 0;
+        short anslen = 0;
+        while (pos < lc_len) {
+            short id = getSecretId(buffer, off_requests, lc_len, pos, by_name, readed);
+            pos = readed[2];
+
+            getRecord(buffer, off_requests, lc_len, pos, readed);
+            pos = readed[2];
+
+            if (!otp_records[id].IsUsed())
+                ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+            if (otp_records[id].GetType() != OTP_TYPE.HMAC)
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+            anslen += otp_records[id].GetHMACLength();
+            if (anslen > max_anslen)
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            if (pos < lc_len && anslen > (short)(off_requests + pos))
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        pos = 0;
+        anslen = 0;
+        while (pos < lc_len) {
+            short id = getSecretId(buffer, off_requests, lc_len, pos, by_name, readed);
+            pos = readed[2];
+
+            getRecord(buffer, off_requests, lc_len, pos, readed);
+            short challenge_pos = readed[0];
+            short challenge_len = readed[1];
+            pos = readed[2];
+
+            anslen += otp_records[id].GenerateHMAC(buffer, (short)(off_requests + challenge_pos), challenge_len, buffer, anslen);
+            countUse(id);
+        }
+        apdu.setOutgoingAndSend((short) 0, anslen);
+    }
+
+    private void streamHMAC(APDU apdu)
+    {
+        if (!PIN.isValidated())
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+
+        byte[] buffer = apdu.getBuffer();
+        getReceivedData(apdu, readed);
+        short off_lc_data = readed[0];
+        short lc_len = readed[1];
+
+        // Transmitted data is located at ISO7816.OFFSET_LC+1 and has length "lc"
+        // INIT data has form <SECRET ID>, UPDATE and FINAL data is part of message
+        // Message is hashed as it comes, so its length is not limited
+        // Returned array with hash result after FINAL
+        short id;
+        switch (buffer[ISO7816.OFFSET_P2]) {
+        case STREAM_STEP.INIT:
+            id = getSecretId(buffer, off_lc_data, lc_len, (short)0, isSecretByName(buffer), readed);
+            if (readed[2] != lc_len)
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+            // HMAC of arbitrary message would reveal next OTPs
+            if (otp_records[id].GetType() != OTP_TYPE.HMAC)
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+            otp_records[id].StartHMAC();
+            countUse(id);
+            break;
+        case STREAM_STEP.UPDATE:
+            if (hmac_session[0] == 0)
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            id = (short)(hmac_session[0] - 1);
+            otp_records[id].UpdateHMAC(buffer, off_lc_data, lc_len);
+            break;
+        case STREAM_STEP.FINAL:
+            if (hmac_session[0] == 0)
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            id = (short)(hmac_session[0] - 1);
+            short hmac_len = otp_records[id].FinishHMAC(buffer, off_lc_data, lc_len, buffer, (short)0);
+            apdu.setOutgoingAndSend((short) 0, hmac_len);
+            break;
+        default:
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+    }
+
+    private void derivePBKDF2(APDU apdu)
+    {
+        if (!PIN.isValidated())
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+
+        byte[] buffer = apdu.getBuffer();
+        getReceivedData(apdu, readed);
+        short off_lc_data = readed[0];
+        short lc_len = readed[1];
+
+        // Long iteration counts are split to several APDUs, so reader doesn't time out
+        switch (buffer[ISO7816.OFFSET_P2]) {
+        case PBKDF2_STEP.START:
+            startPBKDF2(buffer, off_lc_data, lc_len);
+            break;
+        case PBKDF2_STEP.CONTINUE:
+            if (pbkdf2_state[0] == 0)
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            break;
+        default:
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+
+        if (!runPBKDF2())
+            return;
+
+        short key_len = pbkdf2_state[4];
+        Util.arrayCopyNonAtomic(pbkdf2_data, PBKDF2_KEY, buffer, (short)0, key_len);
+        Util.arrayFillNonAtomic(pbkdf2_data, (short)0, PBKDF2_SIZE, (byte)0);
+        pbkdf2_state[0] = 0;
+        apdu.setOutgoingAndSend((short) 0, key_len);
+    }
+
+    private void startPBKDF2(byte[] buffer, short off_lc_data, short lc_len)
     {
-        if ((short)(offset + len) > buffer.length)
-            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-
-        if (position >= len)
+        // Transmitted data is located at ISO7816.OFFSET_LC+1 and has length "lc"
+        // Data has form <SECRET ID> <SALT LEN> SALT <ITERATIONS> <KEY LEN> <ITERATIONS PER APDU>
+        // ITERATIONS is 4 bytes, ITERATIONS PER APDU is 2 bytes
+        pbkdf2_state[0] = 0;
+        short id = getSecretId(buffer, off_lc_data, lc_len, (short)0, isSecretByName(buffer), readed);
+        getRecord(buffer, off_lc_data, lc_len, readed[2], readed);
+        short salt_pos = readed[0];
+        short salt_len = readed[1];
+        short pos = readed[2];
+        if ((short)(pos + 7) != lc_len || salt_len > PBKDF2_MAX_SALT)
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
-        short rec_len = buffer[(short)(offset + position)];
-        if ((short)(position + 1 + rec_len) > len)
+        short iterations_off = (short)(off_lc_data + pos);
+        short key_len = (short)(buffer[(short)(iterations_off + 4)] & 0xFF);
+        short chunk = Util.getShort(buffer, (short)(iterations_off + 5));
+
+        OTPRecord record = otp_records[id];
+        if (!record.IsUsed())
+            ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+        // PRF of arbitrary salt would reveal next OTPs
+        if (record.GetType() != OTP_TYPE.HMAC)
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+        // All blocks of derived key are kept in RAM until the last iteration
+        short hash_len = record.GetHMACLength();
+        short blocks = (short)((short)(key_len + hash_len - 1) / hash_len);
+        if (key_len == 0 || key_len > PBKDF2_MAX_KEY)
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        if (chunk <= 0 || isZero(buffer, iterations_off, (short)4))
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
 
-        out[0] = (short)(position + 1);
-        out[1] = rec_len;
-        out[2] = (short)(position + 1 + rec_len);
+        Util.arrayCopyNonAtomic(buffer, (short)(off_lc_data + salt_pos), pbkdf2_data, PBKDF2_SALT, salt_len);
+        Util.arrayCopyNonAtomic(buffer, iterations_off, pbkdf2_data, PBKDF2_ITERATIONS, (short)4);
+        Util.arrayCopyNonAtomic(buffer, iterations_off, pbkdf2_data, PBKDF2_LEFT, (short)4);
+        countUse(id);
+        pbkdf2_state[0] = (short)(id + 1);
+        pbkdf2_state[1] = 1;
+        pbkdf2_state[2] = blocks;
+        pbkdf2_state[3] = salt_len;
+        pbkdf2_state[4] = key_len;
+        pbkdf2_state[5] = chunk;
     }
 
-    private void getReceivedData(byte[] buffer, short[] out) throws ISOException
+    // Compute next iterations, returns true when derived key is ready
+    private boolean runPBKDF2()
     {
-        getRecord(buffer, (short)0, (short)buffer.length, (short)ISO7816.OFFSET_LC, out);
+        OTPRecord record = otp_records[(short)(pbkdf2_state[0] - 1)];
+        short hash_len = record.GetHMACLength();
+        short salt_len = pbkdf2_state[3];
+        for (short n = pbkdf2_state[5]; n > 0; n--) {
+            short block_off = (short)(PBKDF2_KEY + (short)(pbkdf2_state[1] - 1) * hash_len);
+            if (Util.arrayCompare(pbkdf2_data, PBKDF2_LEFT, pbkdf2_data, PBKDF2_ITERATIONS, (short)4) == 0) {
+                // U1 = PRF(P, S || INT(i))
+                short int_off = (short)(PBKDF2_SALT + salt_len);
+                Util.setShort(pbkdf2_data, int_off, (short)0);
+                Util.setShort(pbkdf2_data, (short)(int_off + 2), pbkdf2_state[1]);
+                record.GenerateHMAC(pbkdf2_data, PBKDF2_SALT, (short)(salt_len + 4), pbkdf2_data, PBKDF2_U);
+                Util.arrayCopyNonAtomic(pbkdf2_data, PBKDF2_U, pbkdf2_data, block_off, hash_len);
+            } else {
+                // Uj = PRF(P, Uj-1), T = U1 ^ ... ^ Uc
+                record.GenerateHMAC(pbkdf2_data, PBKDF2_U, hash_len, pbkdf2_data, PBKDF2_U);
+                for (short i = 0; i < hash_len; i++)
+                    pbkdf2_data[(short)(block_off + i)] ^= pbkdf2_data[(short)(PBKDF2_U + i)];
+            }
+
+            decrementNumber(pbkdf2_data, PBKDF2_LEFT, (short)4);
+            if (isZero(pbkdf2_data, PBKDF2_LEFT, (short)4)) {
+                if (pbkdf2_state[1] == pbkdf2_state[2])
+                    return true;
+                pbkdf2_state[1]++;
+                Util.arrayCopyNonAtomic(pbkdf2_data, PBKDF2_ITERATIONS, pbkdf2_data, PBKDF2_LEFT, (short)4);
+            }
+        }
+        return false;
     }
 
-    /*private short getEClength(byte[] buffer, short lc_len)
+    private void deriveHKDF(APDU apdu)
     {
-        short ec_offset = (short)(ISO7816.OFFSET_LC + 1 + lc_len);
-        if (ec_offset >= buffer.length)
-            return 0;
-        return buffer[ec_offset];
-    }*/
+        if (!PIN.isValidated())
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
 
-    private void getPin(byte[] buffer, short lc_offset, short lc_len, short pos, short[] out) throws ISOException
-    {
-        getRecord(buffer, lc_offset, lc_len, pos, out);
-    }
+        byte[] buffer = apdu.getBuffer();
+        getReceivedData(apdu, readed);
+        short off_lc_data = readed[0];
+        short lc_len = readed[1];
+        byte step = buffer[ISO7816.OFFSET_P2];
+        short id = 0;
+        short salt_pos = 0;
+        short salt_len = 0;
+        short pos = 0;
 
-    private void getNumber(byte[] buffer, short lc_offset, short lc_len, short pos, short[] out) throws ISOException
-    {
-        if (pos >= lc_len)
-            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-        out[0] = pos;
-        out[1] = (short)1;
-        out[2] = (short)(pos + 1);
+        // Data has form <SECRET ID> <SALT LEN> SALT <INFO LEN> INFO <KEY LEN> for EXTRACT_EXPAND
+        // and <INFO LEN> INFO <KEY LEN> for EXPAND
+        switch (step) {
+        case HKDF_STEP.EXTRACT_EXPAND:
+            hkdf_record[0] = 0;
+            id = getSecretId(buffer, off_lc_data, lc_len, (short)0, isSecretByName(buffer), readed);
+            getRecord(buffer, off_lc_data, lc_len, readed[2], readed);
+            salt_pos = readed[0];
+            salt_len = readed[1];
+            pos = readed[2];
+            if (salt_len > HKDF_MAX_SALT)
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            break;
+        case HKDF_STEP.EXPAND:
+            if (hkdf_record[0] == 0)
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            id = (short)(hkdf_record[0] - 1);
+            break;
+        default:
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+
+        getRecord(buffer, off_lc_data, lc_len, pos, readed);
+        short info_pos = readed[0];
+        short info_len = readed[1];
+        pos = readed[2];
+        if ((short)(pos + 1) != lc_len || info_len > HKDF_MAX_INFO)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        short key_len = (short)(buffer[(short)(off_lc_data + pos)] & 0xFF);
+
+        OTPRecord record = otp_records[id];
+        boolean keep = true;
+        if (step == HKDF_STEP.EXTRACT_EXPAND) {
+            if (!record.IsUsed())
+                ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+            // HMAC with secret of OTP record is only computed for OTP
+            if (record.GetType() != OTP_TYPE.HMAC)
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+            countUse(id);
+            record.ExtractKey(buffer, (short)(off_lc_data + salt_pos), salt_len, hkdf_data, HKDF_PRK);
+            keep = (buffer[ISO7816.OFFSET_P1] & HKDF_FLAGS.KEEP_PRK) != 0;
+            if (keep)
+                hkdf_record[0] = (short)(id + 1);
+        }
+
+        // Info is copied, because OKM overwrites command data in buffer
+        Util.arrayCopyNonAtomic(buffer, (short)(off_lc_data + info_pos), hkdf_data, HKDF_INFO, info_len);
+        record.ExpandKey(hkdf_data, HKDF_PRK, hkdf_data, HKDF_INFO, info_len,
+                         hkdf_data, HKDF_BLOCK, buffer, (short)0, key_len);
+
+        // Only kept PRK stays in RAM
+        short wipe_off = keep ? HKDF_BLOCK : HKDF_PRK;
+        Util.arrayFillNonAtomic(hkdf_data, wipe_off, (short)(HKDF_SIZE - wipe_off), (byte)0);
+        apdu.setOutgoingAndSend((short) 0, key_len);
     }
 
-    private void checkPIN(APDU apdu)
+    private void generateHOTP(APDU apdu)
     {
+        if (!PIN.isValidated())
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+
         byte[] buffer = apdu.getBuffer();
-        getReceivedData(buffer, readed);
+
+        getReceivedData(apdu, readed);
         short off_lc_data = readed[0];
         short lc_len = readed[1];
-        
+
         // Transmitted data is located at ISO7816.OFFSET_LC+1 and has length "lc"
-        // Data has form <PIN_LEN> PIN <SECRET ID> <CHALLENGE LEN> CHALLENGE
-        // Returned array with hash result
-        getPin(buffer, off_lc_data, lc_len, (short)0, readed);
-        short cur_pin_pos = readed[0];
-        short cur_pin_len = readed[1];
+        // Data has form <SECRET ID>
+        // Returned array with OTP digits
+        short id = getSecretId(buffer, off_lc_data, lc_len, (short)0, isSecretByName(buffer), readed);
+        sendHOTP(apdu, id);
+    }
 
-        short attempts = PIN.getTriesRemaining();
-        if (attempts == 0)
-            ISOException.throwIt(ISO7816.SW_FILE_INVALID);
+    // There is no data after secret id
+    private void sendHOTP(APDU apdu, short id)
+    {
+        byte[] buffer = apdu.getBuffer();
 
-        if (!PIN.check(buffer, (short)(off_lc_data + cur_pin_pos), (byte)cur_pin_len))
-            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        short otp_len = otp_records[id].GenerateHOTP(buffer, (short)0);
+        countUse(id);
+        apdu.setOutgoingAndSend((short) 0, otp_len);
     }
 
-    private void generateHMAC(APDU apdu)
+    private void verifyHOTP(APDU apdu)
     {
         if (!PIN.isValidated())
             ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
 
         byte[] buffer = apdu.getBuffer();
 
-        getReceivedData(buffer, readed);
+        getReceivedData(apdu, readed);
         short off_lc_data = readed[0];
         short lc_len = readed[1];
-        //short ec_len = getEClength(buffer, lc_len);
 
         // Transmitted data is located at ISO7816.OFFSET_LC+1 and has length "lc"
-        // Data has form <SECRET ID> <CHALLENGE LEN> CHALLENGE
-        // Returned array with hash result
-        short pos = 0;
+        // Data has form <SECRET ID> <WINDOW> OTP [NEXT OTP]
+        // Returned array with offset of matched counter
+        short id = getSecretId(buffer, off_lc_data, lc_len, (short)0, isSecretByName(buffer), readed);
+        short pos = readed[2];
 
         getNumber(buffer, off_lc_data, lc_len, pos, readed);
-        short secret_id_pos = readed[0];
-        byte id = buffer[(short)(off_lc_data + secret_id_pos)];
+        short window = (short)(buffer[(short)(off_lc_data + readed[0])] & 0xFF);
         pos = readed[2];
 
-        getRecord(buffer, off_lc_data, lc_len, pos, readed);
-        short challenge_pos = readed[0];
-        short challenge_len = readed[1];
-        pos = readed[2];
+        short otp_len = (short)(lc_len - pos);
+        if (otp_len > (short)(2 * MAX_OTP_DIGITS))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
-        if (id >= otp_records.length)
-            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        // OTPs are computed at the beginning of the buffer,
+        // so counter and OTPs from host are moved to its end
+        short ctr_off = (short)(getBufferLength(buffer) - 8);
+        short otp_off = (short)(ctr_off - otp_len);
+        Util.arrayCopyNonAtomic(buffer, (short)(off_lc_data + pos), buffer, otp_off, otp_len);
 
-        short hmac_len = otp_records[id].GenerateHMAC(buffer, (short)(off_lc_data + challenge_pos), challenge_len, buffer);
-        apdu.setOutgoingAndSend((short) 0, hmac_len);
+        short offset = otp_records[id].VerifyHOTP(buffer, otp_off, otp_len, window, ctr_off, (short)0);
+        countUse(id);
+        buffer[0] = (byte)offset;
+        apdu.setOutgoingAndSend((short) 0, (short)1);
+    }
+
+    private void generateTOTP(APDU apdu)
+    {
+        if (!PIN.isValidated())
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+
+        byte[] buffer = apdu.getBuffer();
+
+        getReceivedData(apdu, readed);
+        short off_lc_data = readed[0];
+        short lc_len = readed[1];
+
+        // Transmitted data is located at ISO7816.OFFSET_LC+1 and has length "lc"
+        // Data has form <SECRET ID> <TIME> [<WINDOW>], TIME is 8 bytes big endian
+        // Returned array with OTP digits for each time step of window
+        short id = getSecretId(buffer, off_lc_data, lc_len, (short)0, isSecretByName(buffer), readed);
+        sendTOTP(apdu, off_lc_data, lc_len, readed[2], id);
+    }
+
+    // Data after secret id has form <TIME> [<WINDOW>]
+    private void sendTOTP(APDU apdu, short off_lc_data, short lc_len, short pos, short id)
+    {
+        byte[] buffer = apdu.getBuffer();
+
+        if ((short)(pos + 8) > lc_len || (short)(pos + 9) < lc_len)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        short time_pos = pos;
+        byte window = 0;
+        if ((short)(pos + 9) == lc_len)
+            window = buffer[(short)(off_lc_data + pos + 8)];
+
+        // OTPs are written from the beginning of the buffer,
+        // so time step counter is moved to its end
+        short time_off = (short)(getBufferLength(buffer) - 8);
+        Util.arrayCopyNonAtomic(buffer, (short)(off_lc_data + time_pos), buffer, time_off, (short)8);
+
+        short otp_len = otp_records[id].GenerateTOTP(buffer, time_off, window, (short)0, getMaxResponseLength(apdu));
+        countUse(id);
+        apdu.setOutgoingAndSend((short) 0, otp_len);
     }
 
     private void getSecretStatus(APDU apdu)
@@ -450,7 +2096,7 @@ public class OTPCard extends Applet {
             ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
 
         byte[] buffer = apdu.getBuffer();
-        getReceivedData(buffer, readed);
+        getReceivedData(apdu, readed);
         short off_lc_data = readed[0];
         short lc_len = readed[1];
         //short ec_len = getEClength(buffer, lc_len);
@@ -460,27 +2106,71 @@ public class OTPCard extends Applet {
         // Returned data has form <USED> <NAME LEN> NAME <METHOD>
         short pos = 0;
 
-        getNumber(buffer, off_lc_data, lc_len, pos, readed);
-        short secret_id_pos = readed[0];
-        byte id = buffer[(short)(off_lc_data + secret_id_pos)];
+        short id = getId(buffer, off_lc_data, lc_len, pos, readed);
 
-        if (id >= otp_records.length)
-            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        if (buffer.length < getSecretStatusLength(id))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
+        short anslen = putSecretStatus(buffer, (short)0, id);
+        apdu.setOutgoingAndSend((short) 0, anslen);
+    }
+
+    private short getSecretStatusLength(short id)
+    {
+        otp_records[id].GetName(readed);
+        return (short)(3 + readed[1]);
+    }
+
+    // Write <USED> <NAME LEN> NAME <METHOD> to buffer[off], returns offset after it
+    private short putSecretStatus(byte[] buffer, short off, short id)
+    {
         byte used = otp_records[id].IsUsed() ? (byte)1 : (byte)0;
         byte[] name = otp_records[id].GetName(readed);
         byte name_len = (byte)readed[1];
         byte method = otp_records[id].GetMethod();
 
-        if (buffer.length < (short)(3 + name_len))
-            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        buffer[off++] = used;
+        buffer[off++] = name_len;
+        off = Util.arrayCopyNonAtomic(name, readed[0], buffer, off, name_len);
+        buffer[off++] = method;
+        return off;
+    }
 
-        short anslen = 0;
-        buffer[anslen++] = used;
-        buffer[anslen++] = name_len;
-        for (short i = 0; i < name_len; i++)
-            buffer[anslen++] = name[i];
-        buffer[anslen++] = method;
+    private void listSecrets(APDU apdu)
+    {
+        if (!PIN.isValidated())
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+
+        byte[] buffer = apdu.getBuffer();
+        getReceivedData(apdu, readed);
+        short off_lc_data = readed[0];
+        short lc_len = readed[1];
+
+        // Transmitted data is located at ISO7816.OFFSET_LC+1 and has length "lc"
+        // Data has form <FIRST ID>
+        // Returned data has form <NEXT ID> followed by <ID> <USED> <NAME LEN> NAME <METHOD>
+        // for each listed secret, NEXT ID is 0xFFFF when there are no more secrets
+        if (lc_len < 2)
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        short id = Util.getShort(buffer, off_lc_data);
+        if (id < 0 || id > otp_records.length)
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+
+        boolean used_only = (buffer[ISO7816.OFFSET_P1] & LIST_FLAGS.USED_ONLY) != 0;
+        short max_anslen = getMaxResponseLength(apdu);
+        if (buffer.length < max_anslen)
+            max_anslen = (short)buffer.length;
+
+        short anslen = 2;
+        for (; id < otp_records.length; id++) {
+            if (used_only && !otp_records[id].IsUsed())
+                continue;
+            if ((short)(anslen + 2 + getSecretStatusLength(id)) > max_anslen)
+                break;
+            anslen = Util.setShort(buffer, anslen, id);
+            anslen = putSecretStatus(buffer, anslen, id);
+        }
+        Util.setShort(buffer, (short)0, id < otp_records.length ? id : (short)0xFFFF);
         apdu.setOutgoingAndSend((short) 0, anslen);
     }
 
@@ -490,7 +2180,7 @@ public class OTPCard extends Applet {
             ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
 
         byte[] buffer = apdu.getBuffer();
-        getReceivedData(buffer, readed);
+        getReceivedData(apdu, readed);
         short off_lc_data = readed[0];
         short lc_len = readed[1];
 
@@ -519,7 +2209,7 @@ public class OTPCard extends Applet {
     private void updateAdminPin(APDU apdu)
     {
         byte[] buffer = apdu.getBuffer();
-        getReceivedData(buffer, readed);
+        getReceivedData(apdu, readed);
         short off_lc_data = readed[0];
         short lc_len = readed[1];
 
@@ -559,7 +2249,7 @@ public class OTPCard extends Applet {
     private void unblockPin(APDU apdu)
     {
         byte[] buffer = apdu.getBuffer();
-        getReceivedData(buffer, readed);
+        getReceivedData(apdu, readed);
         short off_lc_data = readed[0];
         short lc_len = readed[1];
 
@@ -586,17 +2276,153 @@ public class OTPCard extends Applet {
         AdminPIN.reset();
     }
 
+    private static boolean isComputation(byte ins)
+    {
+        switch (ins) {
+            case INS.HMAC:
+            case INS.BATCH_HMAC:
+            case INS.HMAC_STREAM:
+            case INS.PBKDF2:
+            case INS.HKDF:
+            case INS.HOTP:
+            case INS.VERIFY_HOTP:
+            case INS.TOTP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void countINS(byte ins)
+    {
+        // INS 0x00 is not used, so PIN is counted there
+        short index = ins;
+        if (ins == INS.PIN)
+            index = 0;
+        else if (index <= 0 || index >= STATS_INS)
+            return;
+        addStat(stats_ins_ram, index);
+    }
+
+    // Called after secret of used record was successfully used
+    private void countUse(short id)
+    {
+        short free = -1;
+        for (short i = 0; i < (short)(2 * STATS_SLOTS); i += 2) {
+            if (stats_slots_ram[i] == (short)(id + 1)) {
+                addStat(stats_slots_ram, (short)(i + 1));
+                return;
+            }
+            if (free < 0 && stats_slots_ram[i] == 0)
+                free = i;
+        }
+
+        // Flushing other secret here would add persistent write to HMAC
+        if (free < 0) {
+            addStat(stats_untracked_ram, (short)0);
+            return;
+        }
+        stats_slots_ram[free] = (short)(id + 1);
+        stats_slots_ram[(short)(free + 1)] = 1;
+    }
+
+    // Accumulator, which reaches STATS_FLUSH_LIMIT, requests flush before the next command
+    // which is not a computation
+    private void addStat(short[] ram, short index)
+    {
+        if (ram[index] != 0x7FFF)
+            ram[index]++;
+        if (ram[index] == STATS_FLUSH_LIMIT)
+            stats_flush[0] = true;
+    }
+
+    // Add RAM accumulators to persistent counters in one transaction
+    private void flushStats()
+    {
+        boolean own_transaction = JCSystem.getTransactionDepth() == 0;
+        if (own_transaction)
+            JCSystem.beginTransaction();
+        for (short i = 0; i < STATS_INS; i++) {
+            if (stats_ins_ram[i] != 0)
+                addNumber(stats_ins, (short)(4 * i), (short)4, stats_ins_ram[i]);
+        }
+        for (short i = 0; i < (short)(2 * STATS_SLOTS); i += 2) {
+            if (stats_slots_ram[i] == 0)
+                continue;
+            OTPRecord record = otp_records[(short)(stats_slots_ram[i] - 1)];
+            if (record.IsUsed())
+                record.AddUses(stats_slots_ram[(short)(i + 1)]);
+        }
+        if (stats_untracked_ram[0] != 0)
+            addNumber(stats_untracked, (short)0, (short)4, stats_untracked_ram[0]);
+        if (own_transaction)
+            JCSystem.commitTransaction();
+
+        for (short i = 0; i < STATS_INS; i++)
+            stats_ins_ram[i] = 0;
+        for (short i = 0; i < (short)(2 * STATS_SLOTS); i++)
+            stats_slots_ram[i] = 0;
+        stats_untracked_ram[0] = 0;
+        stats_flush[0] = false;
+    }
+
+    private void getStats(APDU apdu)
+    {
+        if (!PIN.isValidated())
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+
+        byte[] buffer = apdu.getBuffer();
+        getReceivedData(apdu, readed);
+        short off_lc_data = readed[0];
+        short lc_len = readed[1];
+
+        // Transmitted data is located at ISO7816.OFFSET_LC+1 and has length "lc"
+        // Data has form <FIRST ID>
+        // Returned data has form <NEXT ID> <UNTRACKED USES> <INS COUNTERS> followed by <ID> <USES>
+        // for each used secret, NEXT ID is 0xFFFF when there are no more secrets
+        if (lc_len < 2)
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        short id = Util.getShort(buffer, off_lc_data);
+        if (id < 0 || id > otp_records.length)
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+
+        short max_anslen = getMaxResponseLength(apdu);
+        if (buffer.length < max_anslen)
+            max_anslen = (short)buffer.length;
+        if ((short)(2 + 4 + stats_ins.length) > max_anslen)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        flushStats();
+        short anslen = 2;
+        anslen = Util.arrayCopyNonAtomic(stats_untracked, (short)0, buffer, anslen, (short)4);
+        anslen = Util.arrayCopyNonAtomic(stats_ins, (short)0, buffer, anslen, (short)stats_ins.length);
+        for (; id < otp_records.length; id++) {
+            if (!otp_records[id].IsUsed())
+                continue;
+            if ((short)(anslen + 6) > max_anslen)
+                break;
+            anslen = Util.setShort(buffer, anslen, id);
+            anslen = otp_records[id].GetUses(buffer, anslen);
+        }
+        Util.setShort(buffer, (short)0, id < otp_records.length ? id : (short)0xFFFF);
+        apdu.setOutgoingAndSend((short) 0, anslen);
+    }
+
     private void getInfo(APDU apdu)
     {
         byte[] buffer = apdu.getBuffer();
+        if ((buffer[ISO7816.OFFSET_P1] & INFO_FLAGS.EXTENDED) != 0) {
+            getExtendedInfo(apdu);
+            return;
+        }
 
-        if (buffer.length < 10)
+        if (buffer.length < 13)
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
         short anslen = 0;
-        buffer[anslen++] = maxSecrets;
+        anslen = Util.setShort(buffer, anslen, maxSecrets);
         buffer[anslen++] = maxSecretNameLength;
-        buffer[anslen++] = 64; // max Secret length
+        buffer[anslen++] = MAX_SECRET_SIZE;
         buffer[anslen++] = sha1support;
         buffer[anslen++] = sha256support;
         buffer[anslen++] = sha512support;
@@ -604,26 +2430,211 @@ public class OTPCard extends Applet {
         buffer[anslen++] = serial_number[1];
         buffer[anslen++] = serial_number[2];
         buffer[anslen++] = serial_number[3];
+        anslen = Util.setShort(buffer, anslen, (short)(slab.length - slab_used));
+        apdu.setOutgoingAndSend((short) 0, anslen);
+    }
+
+    // Returned data is list of <TAG> <LEN> VALUE, numbers are big endian, new tags may be added later:
+    //      SERIAL      - serial number
+    //      SLOTS       - max amount of secrets, used and free slots (2 bytes each)
+    //      LIMITS      - max secret name length, max secret length, min and max OTP digits
+    //      SLAB        - size and free bytes of space for secrets and names (2 bytes each)
+    //      MEMORY      - available persistent, CLEAR_ON_RESET and CLEAR_ON_DESELECT memory (4 bytes each)
+    //      ALGORITHMS  - INFO_ALGORITHM bits of SHA1, SHA256 and SHA512
+    //      APDU_SIZE   - max command data and max response of short APDU, then of extended APDU (2 bytes each)
+    private void getExtendedInfo(APDU apdu)
+    {
+        byte[] buffer = apdu.getBuffer();
+
+        if (buffer.length < INFO_EXTENDED_SIZE)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        short anslen = 0;
+        anslen = setInfoTag(buffer, anslen, INFO_TAG.SERIAL, (short)4);
+        anslen = Util.arrayCopyNonAtomic(serial_number, (short)0, buffer, anslen, (short)4);
+
+        anslen = setInfoTag(buffer, anslen, INFO_TAG.SLOTS, (short)6);
+        anslen = Util.setShort(buffer, anslen, maxSecrets);
+        anslen = Util.setShort(buffer, anslen, slots_used);
+        anslen = Util.setShort(buffer, anslen, (short)(maxSecrets - slots_used));
+
+        anslen = setInfoTag(buffer, anslen, INFO_TAG.LIMITS, (short)4);
+        buffer[anslen++] = maxSecretNameLength;
+        buffer[anslen++] = MAX_SECRET_SIZE;
+        buffer[anslen++] = MIN_OTP_DIGITS;
+        buffer[anslen++] = MAX_OTP_DIGITS;
+
+        anslen = setInfoTag(buffer, anslen, INFO_TAG.SLAB, (short)4);
+        anslen = Util.setShort(buffer, anslen, (short)slab.length);
+        anslen = Util.setShort(buffer, anslen, (short)(slab.length - slab_used));
+
+        anslen = setInfoTag(buffer, anslen, INFO_TAG.MEMORY, (short)12);
+        anslen = setAvailableMemory(buffer, anslen, JCSystem.MEMORY_TYPE_PERSISTENT);
+        anslen = setAvailableMemory(buffer, anslen, JCSystem.MEMORY_TYPE_TRANSIENT_RESET);
+        anslen = setAvailableMemory(buffer, anslen, JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT);
+
+        anslen = setInfoTag(buffer, anslen, INFO_TAG.ALGORITHMS, (short)3);
+        buffer[anslen++] = getAlgorithmInfo(sha1_digest, sha1_hmac);
+        buffer[anslen++] = getAlgorithmInfo(sha256_digest, sha256_hmac);
+        buffer[anslen++] = getAlgorithmInfo(sha512_digest, sha512_hmac);
+
+        // Command data should fit to APDU buffer after header, see getReceivedData
+        // Cards have APDU buffer of fixed size, simulators may give larger one to extended APDU
+        short buffer_len = getBufferLength(buffer);
+        short short_data = (short)(buffer_len - ISO7816.OFFSET_CDATA);
+        anslen = setInfoTag(buffer, anslen, INFO_TAG.APDU_SIZE, (short)8);
+        anslen = Util.setShort(buffer, anslen, short_data < 255 ? short_data : (short)255);
+        anslen = Util.setShort(buffer, anslen, buffer_len < MAX_SHORT_RESPONSE_SIZE ? buffer_len : MAX_SHORT_RESPONSE_SIZE);
+        anslen = Util.setShort(buffer, anslen, (short)(buffer_len - ISO7816.OFFSET_EXT_CDATA));
+        anslen = Util.setShort(buffer, anslen, buffer_len);
         apdu.setOutgoingAndSend((short) 0, anslen);
     }
 
+    private static short setInfoTag(byte[] buffer, short off, byte tag, short len)
+    {
+        buffer[off++] = tag;
+        buffer[off++] = (byte)len;
+        return off;
+    }
+
+    // Available memory as 4 bytes. Short variant of getAvailableMemory is limited by 0x7FFF,
+    // exact amount is given by the variant with array, it is kept if runtime doesn't fill array
+    private short setAvailableMemory(byte[] buffer, short off, byte type)
+    {
+        readed[0] = 0;
+        readed[1] = JCSystem.getAvailableMemory(type);
+        JCSystem.getAvailableMemory(readed, (short)0, type);
+        off = Util.setShort(buffer, off, readed[0]);
+        return Util.setShort(buffer, off, readed[1]);
+    }
+
+    private byte getAlgorithmInfo(MessageDigest digest, Signature signature)
+    {
+        byte info = 0;
+        if (digest != null)
+            info |= INFO_ALGORITHM.DIGEST;
+        if (signature != null && hmac_key != null)
+            info |= INFO_ALGORITHM.HMAC_SIGNATURE;
+        return info;
+    }
+
     private void storeSecret(APDU apdu)
     {
         if (!PIN.isValidated())
             ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
 
         byte[] buffer = apdu.getBuffer();
-        getReceivedData(buffer, readed);
+        getReceivedData(apdu, readed);
+        short off_lc_data = readed[0];
+        short lc_len = readed[1];
+
+        boolean software_only = (buffer[ISO7816.OFFSET_P1] & STORE_FLAGS.SOFTWARE_HMAC) != 0;
+        checkSecrets(buffer, off_lc_data, lc_len, software_only, false);
+        saveSecret(buffer, off_lc_data, lc_len, software_only, SAVE_MODE.WRITE);
+    }
+
+    private void storeSecrets(APDU apdu)
+    {
+        if (!PIN.isValidated())
+            ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+
+        byte[] buffer = apdu.getBuffer();
+        getReceivedData(apdu, readed);
         short off_lc_data = readed[0];
         short lc_len = readed[1];
 
-        // Data has form <SECRET ID> <SECRET LEN> SECRET <NAME LEN> NAME <METHOD>
+        // Transmitted data is located at ISO7816.OFFSET_LC+1 and has length "lc"
+        // Data has form <ENTRY LEN> ENTRY, repeated for each secret
+        // ENTRY has the same form as SAVE_NEW_SECRET data
+        boolean software_only = (buffer[ISO7816.OFFSET_P1] & STORE_FLAGS.SOFTWARE_HMAC) != 0;
+
+        // All secrets are checked before anything is written,
+        // so malformed list or list which doesn't fit to slab doesn't change any of them
+        checkSecrets(buffer, off_lc_data, lc_len, software_only, true);
+        saveSecrets(buffer, off_lc_data, lc_len, software_only, SAVE_MODE.ALLOCATE);
+
+        // Commit is the most expensive operation, so all secrets share one transaction,
+        // it also keeps all or none of them if card is torn
+        JCSystem.beginTransaction();
+        try {
+            saveSecrets(buffer, off_lc_data, lc_len, software_only, SAVE_MODE.WRITE);
+        } catch (ISOException e) {
+            JCSystem.abortTransaction();
+            throw e;
+        } catch (TransactionException e) {
+            // Commit buffer is full, host should send less secrets at once
+            JCSystem.abortTransaction();
+            ISOException.throwIt(ISO7816.SW_FILE_FULL);
+        }
+        JCSystem.commitTransaction();
+    }
+
+    // Entries of storeSecrets list
+    private void saveSecrets(byte[] buffer, short off_lc_data, short lc_len, boolean software_only, byte mode)
+    {
         short pos = 0;
+        while (pos < lc_len) {
+            getRecord(buffer, off_lc_data, lc_len, pos, readed);
+            short entry_pos = readed[0];
+            short entry_len = readed[1];
+            pos = readed[2];
 
-        getNumber(buffer, off_lc_data, lc_len, pos, readed);
-        short secret_id_pos = readed[0];
-        byte id = buffer[(short)(off_lc_data + secret_id_pos)];
-        pos = readed[2];
+            saveSecret(buffer, (short)(off_lc_data + entry_pos), entry_len, software_only, mode);
+        }
+    }
+
+    // Check secret or list of secrets of storeSecrets without writing them
+    // Slab is compacted only if appended data doesn't fit after slab_top,
+    // so data is never moved in transaction of caller
+    private void checkSecrets(byte[] buffer, short off_lc_data, short lc_len, boolean software_only, boolean batch)
+    {
+        if (fitsSlab(buffer, off_lc_data, lc_len, software_only, batch))
+            return;
+        // Compaction shrinks space of records to their data, so less secrets fit in place
+        compactSlab();
+        if (!fitsSlab(buffer, off_lc_data, lc_len, software_only, batch))
+            ISOException.throwIt(ISO7816.SW_FILE_FULL);
+    }
+
+    // Space of updated record only grows, so secret which is updated several times
+    // appends no more than it is counted here
+    private boolean fitsSlab(byte[] buffer, short off_lc_data, short lc_len, boolean software_only, boolean batch)
+    {
+        short bytes = 0;
+        short entries = 0;
+        short pos = 0;
+        while (pos < lc_len) {
+            short entry_pos = 0;
+            short entry_len = lc_len;
+            if (batch) {
+                getRecord(buffer, off_lc_data, lc_len, pos, readed);
+                entry_pos = readed[0];
+                entry_len = readed[1];
+                pos = readed[2];
+            } else {
+                pos = lc_len;
+            }
+
+            short appended = saveSecret(buffer, (short)(off_lc_data + entry_pos), entry_len, software_only, SAVE_MODE.CHECK);
+            if (appended != 0) {
+                bytes += appended;
+                entries++;
+            }
+        }
+        return bytes <= (short)(slab.length - slab_top) &&
+               entries <= (short)(slab_order.length - slab_order_count);
+    }
+
+    // Data has form <SECRET ID> <SECRET LEN> SECRET <NAME LEN> NAME <METHOD> [<PARAMS LEN> PARAMS]
+    // Mode is one of SAVE_MODE, returns bytes which are appended to slab
+    private short saveSecret(byte[] buffer, short off_lc_data, short lc_len, boolean software_only, byte mode)
+    {
+        short pos = 0;
+
+        if ((short)(pos + 2) > lc_len)
+            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        short id = Util.getShort(buffer, (short)(off_lc_data + pos));
+        pos += 2;
 
         getPin(buffer, off_lc_data, lc_len, pos, readed);
         short secret_pos = readed[0];
@@ -640,7 +2651,16 @@ public class OTPCard extends Applet {
         byte method = buffer[(short)(off_lc_data + method_pos)];
         pos = readed[2];
 
-        if (id >= otp_records.length)
+        short params_pos = 0;
+        short params_len = 0;
+        if (pos < lc_len) {
+            getRecord(buffer, off_lc_data, lc_len, pos, readed);
+            params_pos = readed[0];
+            params_len = readed[1];
+            pos = readed[2];
+        }
+
+        if (id < 0 || id >= otp_records.length)
             ISOException.throwIt(ISO7816.SW_DATA_INVALID);
 
         switch (method) {
@@ -661,10 +2681,12 @@ public class OTPCard extends Applet {
                 break;
         }
 
-        otp_records[id].FillRecord(buffer,
-                                   (short)(off_lc_data + secret_pos), (byte)secret_len,
-                                   (short)(off_lc_data + name_pos), (byte)name_len,
-                                   method);
+        return otp_records[id].FillRecord(buffer,
+                                          (short)(off_lc_data + secret_pos), (byte)secret_len,
+                                          (short)(off_lc_data + name_pos), (byte)name_len,
+                                          method, software_only,
+                                          (short)(off_lc_data + params_pos), params_len,
+                                          mode);
     }
 
     private void clearSecret(APDU apdu)
@@ -673,7 +2695,7 @@ public class OTPCard extends Applet {
             ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
 
         byte[] buffer = apdu.getBuffer();
-        getReceivedData(buffer, readed);
+        getReceivedData(apdu, readed);
         short off_lc_data = readed[0];
         short lc_len = readed[1];
 
@@ -681,11 +2703,7 @@ public class OTPCard extends Applet {
         // Data has form <NEW_PIN_LEN> NEWPIN
         short pos = 0;
 
-        getNumber(buffer, off_lc_data, lc_len, pos, readed);
-        short secret_id_pos = readed[0];
-        byte id = buffer[(short)(off_lc_data + secret_id_pos)];
-        if (id >= otp_records.length)
-            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        short id = getId(buffer, off_lc_data, lc_len, pos, readed);
 
         otp_records[id].Clear();
     }
@@ -0,0 +1,362 @@
+package com.vladtcvs.otpcard;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.base.SimulatorRuntime;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+import javacard.security.*;
+
+/*
+ * Operation-cost model of OTPCard in jcardsim. Wall-clock time of simulator says little
+ * about real card, where persistent memory writes, transactions and hash blocks dominate,
+ * so they are counted for each APDU and attributed to its INS:
+ *
+ *      persistent bytes    - bytes of persistent arrays and fields of applet, changed by APDU
+ *      persistent writes   - runs of adjacent changed bytes, each is at least one EEPROM write
+ *      transactions        - JCSystem.beginTransaction calls
+ *      hash blocks         - compression function calls of digests and HMAC signatures
+ *
+ * Persistent bytes and writes are lower bounds. jcardsim stores to arrays and fields directly,
+ * so writes can't be counted as they are done, and state is compared before and after APDU:
+ * write of the same value, e.g. OwnerPIN try counter set back by successful check, and byte
+ * written several times by one APDU are counted once or not at all.
+ */
+class OTPCardCostModel {
+
+    static class Cost {
+        long apdus;
+        long persistentBytes;
+        long persistentWrites;
+        long transactions;
+        long hashBlocks;
+
+        private void add(Cost other) {
+            apdus += other.apdus;
+            persistentBytes += other.persistentBytes;
+            persistentWrites += other.persistentWrites;
+            transactions += other.transactions;
+            hashBlocks += other.hashBlocks;
+        }
+    }
+
+    private class CountingRuntime extends SimulatorRuntime {
+        @Override
+        public void beginTransaction() {
+            current.transactions++;
+            super.beginTransaction();
+        }
+
+        Applet applet(AID aid) {
+            return getApplet(aid);
+        }
+    }
+
+    // Padded message of length len takes (len + 1 + length field + block - 1) / block blocks
+    private static long paddedBlocks(long len, short block) {
+        return (len + 1 + block / 8 + block - 1) / block;
+    }
+
+    private static short blockSize(byte algorithm) {
+        return (algorithm == MessageDigest.ALG_SHA_512 || algorithm == Signature.ALG_HMAC_SHA_512) ? (short)128 : (short)64;
+    }
+
+    private class CountingDigest extends MessageDigest {
+        private final MessageDigest digest;
+        private final short block;
+        private long pending;
+
+        CountingDigest(MessageDigest digest) {
+            this.digest = digest;
+            this.block = blockSize(digest.getAlgorithm());
+        }
+
+        public byte getAlgorithm() {
+            return digest.getAlgorithm();
+        }
+
+        public byte getLength() {
+            return digest.getLength();
+        }
+
+        public short doFinal(byte[] in, short off, short len, byte[] out, short out_off) {
+            current.hashBlocks += paddedBlocks(pending + len, block);
+            pending = 0;
+            return digest.doFinal(in, off, len, out, out_off);
+        }
+
+        public void update(byte[] in, short off, short len) {
+            pending += len;
+            digest.update(in, off, len);
+        }
+
+        public void reset() {
+            // Full blocks are already processed by update
+            current.hashBlocks += pending / block;
+            pending = 0;
+            digest.reset();
+        }
+    }
+
+    // HMAC is inner hash of key block and message, and outer hash of key block and inner hash
+    private class CountingSignature extends Signature {
+        private final Signature signature;
+        private final short block;
+        private long pending;
+
+        CountingSignature(Signature signature) {
+            this.signature = signature;
+            this.block = blockSize(signature.getAlgorithm());
+        }
+
+        public void init(Key key, byte mode) {
+            pending = block;
+            signature.init(key, mode);
+        }
+
+        public void init(Key key, byte mode, byte[] buf, short off, short len) {
+            pending = block;
+            signature.init(key, mode, buf, off, len);
+        }
+
+        public void setInitialDigest(byte[] state, short state_off, short state_len, byte[] counter, short counter_off, short counter_len) {
+            signature.setInitialDigest(state, state_off, state_len, counter, counter_off, counter_len);
+        }
+
+        public byte getAlgorithm() {
+            return signature.getAlgorithm();
+        }
+
+        public byte getMessageDigestAlgorithm() {
+            return signature.getMessageDigestAlgorithm();
+        }
+
+        public byte getCipherAlgorithm() {
+            return signature.getCipherAlgorithm();
+        }
+
+        public byte getPaddingAlgorithm() {
+            return signature.getPaddingAlgorithm();
+        }
+
+        public short getLength() {
+            return signature.getLength();
+        }
+
+        public void update(byte[] in, short off, short len) {
+            pending += len;
+            signature.update(in, off, len);
+        }
+
+        private void finish(long len) {
+            current.hashBlocks += paddedBlocks(pending + len, block) + paddedBlocks(block + signature.getLength(), block);
+            pending = block;
+        }
+
+        public short sign(byte[] in, short off, short len, byte[] out, short out_off) {
+            finish(len);
+            return signature.sign(in, off, len, out, out_off);
+        }
+
+        public short signPreComputedHash(byte[] hash, short off, short len, byte[] out, short out_off) {
+            return signature.signPreComputedHash(hash, off, len, out, out_off);
+        }
+
+        public boolean verify(byte[] in, short off, short len, byte[] sig, short sig_off, short sig_len) {
+            finish(len);
+            return signature.verify(in, off, len, sig, sig_off, sig_len);
+        }
+
+        public boolean verifyPreComputedHash(byte[] hash, short off, short len, byte[] sig, short sig_off, short sig_len) {
+            return signature.verifyPreComputedHash(hash, off, len, sig, sig_off, sig_len);
+        }
+    }
+
+    private final Map<Byte, Cost> profile = new TreeMap<>();
+    private final CountingRuntime runtime = new CountingRuntime();
+    private final Applet applet;
+    private Cost current = new Cost();
+    final Simulator sim;
+
+    // Install and select applet with install parameters params
+    OTPCardCostModel(byte[] params) throws Exception {
+        sim = new Simulator(runtime);
+        AID appletAID = AIDUtil.create("A000000002020101");
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+        applet = runtime.applet(appletAID);
+
+        for (String name : new String[]{"sha1_digest", "sha256_digest", "sha512_digest"}) {
+            Field field = accessible(OTPCard.class.getDeclaredField(name));
+            if (field.get(applet) != null)
+                field.set(applet, new CountingDigest((MessageDigest) field.get(applet)));
+        }
+        for (String name : new String[]{"sha1_hmac", "sha256_hmac", "sha512_hmac"}) {
+            Field field = accessible(OTPCard.class.getDeclaredField(name));
+            if (field.get(applet) != null)
+                field.set(applet, new CountingSignature((Signature) field.get(applet)));
+        }
+    }
+
+    // Send APDU and add its costs to profile of its INS
+    byte[] transmit(byte[] apdu) {
+        Map<Object, byte[]> before = snapshot();
+        current = new Cost();
+        current.apdus = 1;
+        byte[] resp = sim.transmitCommand(apdu);
+
+        Map<Object, byte[]> after = snapshot();
+        for (Map.Entry<Object, byte[]> entry : after.entrySet()) {
+            byte[] old = before.get(entry.getKey());
+            byte[] now = entry.getValue();
+            boolean run = false;
+            for (int i = 0; i < now.length; i++) {
+                boolean changed = old == null || old[i] != now[i];
+                if (changed) {
+                    current.persistentBytes++;
+                    if (!run)
+                        current.persistentWrites++;
+                }
+                run = changed;
+            }
+        }
+
+        Byte ins = apdu[ISO7816.OFFSET_INS];
+        if (!profile.containsKey(ins))
+            profile.put(ins, new Cost());
+        profile.get(ins).add(current);
+        return resp;
+    }
+
+    Cost last() {
+        return current;
+    }
+
+    Cost cost(byte ins) {
+        Cost cost = profile.get(ins);
+        return cost != null ? cost : new Cost();
+    }
+
+    void clear() {
+        profile.clear();
+    }
+
+    String report() {
+        StringBuilder report = new StringBuilder();
+        report.append("Persistent bytes and writes are changed ones, writes of the same value are not counted\n");
+        report.append(String.format("%-6s %8s %14s %14s %14s %14s%n", "INS", "APDUs", "persist bytes", "persist writes",
+                                    "transactions", "hash blocks"));
+        for (Map.Entry<Byte, Cost> entry : profile.entrySet()) {
+            Cost cost = entry.getValue();
+            report.append(String.format("0x%02X   %8d %14.1f %14.1f %14.2f %14.1f%n", entry.getKey(), cost.apdus,
+                                        (double) cost.persistentBytes / cost.apdus,
+                                        (double) cost.persistentWrites / cost.apdus,
+                                        (double) cost.transactions / cost.apdus,
+                                        (double) cost.hashBlocks / cost.apdus));
+        }
+        return report.toString();
+    }
+
+    private static Field accessible(Field field) {
+        field.setAccessible(true);
+        return field;
+    }
+
+    // Bytes of each persistent array and of primitive fields of each object reachable from applet
+    private Map<Object, byte[]> snapshot() {
+        Map<Object, byte[]> state = new IdentityHashMap<>();
+        try {
+            walk(applet, state);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        return state;
+    }
+
+    private static boolean isPersistentState(Object value) {
+        String name = value.getClass().getName();
+        return name.equals(OTPCard.class.getName()) || name.startsWith(OTPCard.class.getName() + "$") || value instanceof OwnerPIN;
+    }
+
+    private void walk(Object object, Map<Object, byte[]> state) throws IllegalAccessException {
+        if (object == null || state.containsKey(object))
+            return;
+
+        if (object.getClass().isArray()) {
+            if (JCSystem.isTransient(object) != JCSystem.NOT_A_TRANSIENT_OBJECT)
+                return;
+            if (object instanceof Object[]) {
+                state.put(object, new byte[0]);
+                for (Object element : (Object[]) object)
+                    if (element != null && (element.getClass().isArray() || isPersistentState(element)))
+                        walk(element, state);
+                return;
+            }
+            state.put(object, arrayBytes(object));
+            return;
+        }
+
+        List<Byte> bytes = new ArrayList<>();
+        state.put(object, null);
+        for (Class<?> cls = object.getClass(); cls != null && cls != Applet.class && cls != Object.class; cls = cls.getSuperclass()) {
+            for (Field field : cls.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic())
+                    continue;
+                Object value = accessible(field).get(object);
+                if (field.getType().isPrimitive()) {
+                    for (byte b : primitiveBytes(value))
+                        bytes.add(b);
+                } else if (value != null && (value.getClass().isArray() || isPersistentState(value))) {
+                    walk(value, state);
+                }
+            }
+        }
+        byte[] fields = new byte[bytes.size()];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = bytes.get(i);
+        state.put(object, fields);
+    }
+
+    private static byte[] arrayBytes(Object array) {
+        if (array instanceof byte[])
+            return ((byte[]) array).clone();
+        if (array instanceof short[]) {
+            short[] values = (short[]) array;
+            byte[] bytes = new byte[values.length * 2];
+            for (int i = 0; i < values.length; i++) {
+                bytes[2 * i] = (byte)(values[i] >> 8);
+                bytes[2 * i + 1] = (byte) values[i];
+            }
+            return bytes;
+        }
+        if (array instanceof boolean[]) {
+            boolean[] values = (boolean[]) array;
+            byte[] bytes = new byte[values.length];
+            for (int i = 0; i < values.length; i++)
+                bytes[i] = values[i] ? (byte)1 : (byte)0;
+            return bytes;
+        }
+        throw new IllegalStateException("Unexpected persistent array " + array.getClass());
+    }
+
+    private static byte[] primitiveBytes(Object value) {
+        if (value instanceof Byte)
+            return new byte[]{(Byte) value};
+        if (value instanceof Boolean)
+            return new byte[]{(byte)((Boolean) value ? 1 : 0)};
+        if (value instanceof Short)
+            return new byte[]{(byte)((Short) value >> 8), (byte)(short)(Short) value};
+        // Not used by JavaCard applet, compared as a whole
+        long bits = value instanceof Number ? ((Number) value).longValue() : value.hashCode();
+        return new byte[]{(byte)(bits >> 56), (byte)(bits >> 48), (byte)(bits >> 40), (byte)(bits >> 32),
+                          (byte)(bits >> 24), (byte)(bits >> 16), (byte)(bits >> 8), (byte) bits};
+    }
+}
@@ -0,0 +1,138 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+public class OTPCard_HOTP_Test {
+    // RFC 4226 Appendix D
+    private static final byte[] SECRET = {'1', '2', '3', '4', '5', '6', '7', '8', '9', '0',
+                                          '1', '2', '3', '4', '5', '6', '7', '8', '9', '0'};
+    private static final String[] RFC4226_OTP = {"755224", "287082", "359152", "969429", "338314",
+                                                 "254676", "287922", "162583", "399871", "520489"};
+
+    private Simulator sim;
+
+    @BeforeEach
+    void setup() {
+        sim = new Simulator();
+        // Install and select
+        AID appletAID = AIDUtil.create("A000000002020101");
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        byte[] resp = sim.transmitCommand(apdu_pin);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+    }
+
+    // SAVE_NEW_SECRET with HOTP parameters
+    private byte[] store(byte p1, byte id, byte method, byte digits, long counter) {
+        byte[] apdu = new byte[5 + 2 + 1 + SECRET.length + 5 + 1 + 11];
+        int pos = 0;
+        apdu[pos++] = 0x00;
+        apdu[pos++] = 0x03;
+        apdu[pos++] = p1;
+        apdu[pos++] = 0x00;
+        apdu[pos++] = (byte)(apdu.length - 5);
+        apdu[pos++] = 0;
+        apdu[pos++] = id;
+        apdu[pos++] = (byte)SECRET.length;
+        for (int i = 0; i < SECRET.length; i++)
+            apdu[pos++] = SECRET[i];
+        apdu[pos++] = 4;
+        apdu[pos++] = 'H';
+        apdu[pos++] = 'O';
+        apdu[pos++] = 'T';
+        apdu[pos++] = 'P';
+        apdu[pos++] = method;
+        apdu[pos++] = 10;
+        apdu[pos++] = 1; // HOTP
+        apdu[pos++] = digits;
+        for (int i = 7; i >= 0; i--)
+            apdu[pos++] = (byte)(counter >> (8 * i));
+        return sim.transmitCommand(apdu);
+    }
+
+    private void checkHOTP(byte id, String otp) {
+        byte[] apdu = {(byte)0x00, 0x0A, 0x00, 0x00, 2, 0, id};
+        byte[] resp = sim.transmitCommand(apdu);
+        byte[] expected = new byte[otp.length() + 2];
+        for (int i = 0; i < otp.length(); i++)
+            expected[i] = (byte)otp.charAt(i);
+        expected[otp.length()] = (byte)0x90;
+        expected[otp.length() + 1] = 0x00;
+        assertArrayEquals(expected, resp);
+    }
+
+    @Test
+    public void rfc4226() {
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)0, (byte)0, (byte)1, (byte)6, 0));
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)1, (byte)1, (byte)1, (byte)6, 0));
+        for (int i = 0; i < RFC4226_OTP.length; i++) {
+            checkHOTP((byte)0, RFC4226_OTP[i]);
+            checkHOTP((byte)1, RFC4226_OTP[i]);
+        }
+    }
+
+    @Test
+    public void initialCounter() {
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)0, (byte)0, (byte)1, (byte)6, 7));
+        checkHOTP((byte)0, RFC4226_OTP[7]);
+        checkHOTP((byte)0, RFC4226_OTP[8]);
+    }
+
+    @Test
+    public void eightDigits() {
+        // Counter crosses 32-bit boundary
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)0, (byte)0, (byte)2, (byte)8, 0x100000000L));
+        checkHOTP((byte)0, "17111431");
+        checkHOTP((byte)0, "31050204");
+
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)1, (byte)1, (byte)3, (byte)8, 5));
+        checkHOTP((byte)1, "16848329");
+        checkHOTP((byte)1, "36266680");
+    }
+
+    @Test
+    public void wrongDigits() {
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x84}, store((byte)0, (byte)0, (byte)1, (byte)5, 0));
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x84}, store((byte)0, (byte)0, (byte)1, (byte)9, 0));
+    }
+
+    @Test
+    public void noRawHMAC() {
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)0, (byte)0, (byte)1, (byte)6, 0));
+        byte[] apdu = {(byte)0x00, 0x01, 0x00, 0x00, 11, 0, 0, 8, 0, 0, 0, 0, 0, 0, 0, 0};
+        byte[] resp = sim.transmitCommand(apdu);
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x85}, resp);
+    }
+
+    @Test
+    public void notHOTP() {
+        byte[] apdu_store = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+        byte[] resp = sim.transmitCommand(apdu_store);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+        byte[] apdu = {(byte)0x00, 0x0A, 0x00, 0x00, 2, 0, 0};
+        resp = sim.transmitCommand(apdu);
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x85}, resp);
+
+        byte[] apdu_unused = {(byte)0x00, 0x0A, 0x00, 0x00, 2, 0, 1};
+        resp = sim.transmitCommand(apdu_unused);
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x83}, resp);
+    }
+}
@@ -23,8 +23,8 @@ public class OTPCard_PIN_Test {
                          (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
                          0x01, // CI len
                          0x00, // CI data
-                         0x08,  // AD len
-                         0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
                         };
         sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
         sim.selectApplet(appletAID);
@@ -0,0 +1,174 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+public class OTPCard_TOTP_Test {
+    // RFC 6238 Appendix B, seeds for SHA1, SHA256 and SHA512
+    private static final String[] SEEDS = {"12345678901234567890",
+                                           "12345678901234567890123456789012",
+                                           "1234567890123456789012345678901234567890123456789012345678901234"};
+    private static final long[] TIMES = {59L, 1111111109L, 1111111111L, 1234567890L, 2000000000L, 20000000000L};
+    private static final String[][] RFC6238_OTP = {
+        {"94287082", "07081804", "14050471", "89005924", "69279037", "65353130"},
+        {"46119246", "68084774", "67062674", "91819424", "90698825", "77737706"},
+        {"90693936", "25091201", "99943326", "93441116", "38618901", "47863826"},
+    };
+
+    private Simulator sim;
+
+    @BeforeEach
+    void setup() {
+        sim = new Simulator();
+        // Install and select
+        AID appletAID = AIDUtil.create("A000000002020101");
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        byte[] resp = sim.transmitCommand(apdu_pin);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+    }
+
+    // SAVE_NEW_SECRET with TOTP parameters
+    private byte[] store(byte p1, byte id, byte method, String seed, byte digits, int step, long t0) {
+        byte[] apdu = new byte[5 + 2 + 1 + seed.length() + 5 + 1 + 13];
+        int pos = 0;
+        apdu[pos++] = 0x00;
+        apdu[pos++] = 0x03;
+        apdu[pos++] = p1;
+        apdu[pos++] = 0x00;
+        apdu[pos++] = (byte)(apdu.length - 5);
+        apdu[pos++] = 0;
+        apdu[pos++] = id;
+        apdu[pos++] = (byte)seed.length();
+        for (int i = 0; i < seed.length(); i++)
+            apdu[pos++] = (byte)seed.charAt(i);
+        apdu[pos++] = 4;
+        apdu[pos++] = 'T';
+        apdu[pos++] = 'O';
+        apdu[pos++] = 'T';
+        apdu[pos++] = 'P';
+        apdu[pos++] = method;
+        apdu[pos++] = 12;
+        apdu[pos++] = 2; // TOTP
+        apdu[pos++] = digits;
+        apdu[pos++] = (byte)(step >> 8);
+        apdu[pos++] = (byte)step;
+        for (int i = 7; i >= 0; i--)
+            apdu[pos++] = (byte)(t0 >> (8 * i));
+        return sim.transmitCommand(apdu);
+    }
+
+    private byte[] totp(byte id, long time, int window) {
+        byte[] apdu = new byte[5 + 2 + 8 + (window >= 0 ? 1 : 0)];
+        apdu[1] = 0x0B;
+        apdu[4] = (byte)(apdu.length - 5);
+        apdu[6] = id;
+        for (int i = 0; i < 8; i++)
+            apdu[7 + i] = (byte)(time >> (8 * (7 - i)));
+        if (window >= 0)
+            apdu[15] = (byte)window;
+        return sim.transmitCommand(apdu);
+    }
+
+    private static byte[] expected(String otp) {
+        byte[] expected = new byte[otp.length() + 2];
+        for (int i = 0; i < otp.length(); i++)
+            expected[i] = (byte)otp.charAt(i);
+        expected[otp.length()] = (byte)0x90;
+        expected[otp.length() + 1] = 0x00;
+        return expected;
+    }
+
+    @Test
+    public void rfc6238() {
+        for (byte m = 0; m < 3; m++) {
+            assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)0, m, (byte)(m + 1), SEEDS[m], (byte)8, 30, 0));
+            assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)1, (byte)(m + 3), (byte)(m + 1), SEEDS[m], (byte)8, 30, 0));
+        }
+        for (byte m = 0; m < 3; m++) {
+            for (int i = 0; i < TIMES.length; i++) {
+                assertArrayEquals(expected(RFC6238_OTP[m][i]), totp(m, TIMES[i], -1));
+                assertArrayEquals(expected(RFC6238_OTP[m][i]), totp((byte)(m + 3), TIMES[i], 0));
+            }
+        }
+    }
+
+    @Test
+    public void stepAndT0() {
+        // 60 seconds step with T0 shifted by 1000 gives same counters as RFC for doubled time
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)0, (byte)0, (byte)1, SEEDS[0], (byte)8, 60, 1000));
+        assertArrayEquals(expected(RFC6238_OTP[0][3]), totp((byte)0, 1000 + 2 * 1234567890L, -1));
+        assertArrayEquals(expected(RFC6238_OTP[0][4]), totp((byte)0, 1000 + 2 * 2000000000L, -1));
+
+        // Largest step
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)0, (byte)1, (byte)1, SEEDS[0], (byte)8, 32767, 0));
+        assertArrayEquals(expected(RFC6238_OTP[0][5]), totp((byte)1, 20000000000L / 30 * 32767, -1));
+    }
+
+    @Test
+    public void window() {
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)0, (byte)0, (byte)2, SEEDS[1], (byte)6, 30, 0));
+        final long time = 1234567890L;
+        final int window = 3;
+        byte[] resp = totp((byte)0, time, window);
+        assertEquals(6 * (2 * window + 1) + 2, resp.length);
+        for (int i = -window; i <= window; i++) {
+            byte[] single = totp((byte)0, time + 30 * i, -1);
+            for (int j = 0; j < 6; j++)
+                assertEquals(single[j], resp[6 * (i + window) + j]);
+        }
+        assertEquals((byte)0x90, resp[resp.length - 2]);
+        assertEquals((byte)0x00, resp[resp.length - 1]);
+
+        // Short response fits 41 OTPs of 6 digits, but scratch of the last one does not
+        assertArrayEquals(new byte[]{(byte)0x67, (byte)0x00}, totp((byte)0, time, 20));
+        assertArrayEquals(new byte[]{(byte)0x67, (byte)0x00}, totp((byte)0, time, 21));
+    }
+
+    @Test
+    public void timeBeforeT0() {
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)0, (byte)0, (byte)1, SEEDS[0], (byte)6, 30, 1000));
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x84}, totp((byte)0, 999, -1));
+        // Window goes before T0
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x84}, totp((byte)0, 1030, 2));
+    }
+
+    @Test
+    public void wrongParams() {
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x84}, store((byte)0, (byte)0, (byte)1, SEEDS[0], (byte)9, 30, 0));
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x84}, store((byte)0, (byte)0, (byte)1, SEEDS[0], (byte)6, 0, 0));
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x84}, store((byte)0, (byte)0, (byte)1, SEEDS[0], (byte)6, 0x8000, 0));
+    }
+
+    @Test
+    public void notTOTP() {
+        byte[] apdu_store = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+        byte[] resp = sim.transmitCommand(apdu_store);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x85}, totp((byte)0, 59, -1));
+
+        // TOTP secret can't be used for HOTP and raw HMAC
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)0, (byte)1, (byte)1, SEEDS[0], (byte)6, 30, 0));
+        byte[] apdu_hotp = {(byte)0x00, 0x0A, 0x00, 0x00, 2, 0, 1};
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x85}, sim.transmitCommand(apdu_hotp));
+        byte[] apdu_hmac = {(byte)0x00, 0x01, 0x00, 0x00, 11, 0, 1, 8, 0, 0, 0, 0, 0, 0, 0, 1};
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x85}, sim.transmitCommand(apdu_hmac));
+    }
+}
@@ -0,0 +1,135 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+public class OTPCard_batchHMAC_Test {
+    private static final int CHALLENGES = 1200;
+    // Short APDU fits 12 SHA-1 results for 8 bytes challenges
+    private static final int BATCH = 12;
+
+    private Simulator sim;
+
+    @BeforeEach
+    void setup() {
+        sim = new Simulator();
+        // Install and select
+        AID appletAID = AIDUtil.create("A000000002020101");
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        byte[] resp = sim.transmitCommand(apdu_pin);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+        byte[] apdu_sha1 = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+        resp = sim.transmitCommand(apdu_sha1);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+        byte[] apdu_sha256 = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 1, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 2};
+        resp = sim.transmitCommand(apdu_sha256);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+    }
+
+    private static byte[] challenge(int i) {
+        byte[] ch = new byte[8];
+        for (int j = 0; j < 8; j++)
+            ch[j] = (byte)((i >> (8*j)) & 0xFF);
+        return ch;
+    }
+
+    private static byte[] hmacAPDU(byte id, byte[] ch) {
+        byte[] apdu = new byte[5 + 3 + ch.length];
+        apdu[1] = 0x01;
+        apdu[4] = (byte)(3 + ch.length);
+        apdu[6] = id;
+        apdu[7] = (byte)ch.length;
+        System.arraycopy(ch, 0, apdu, 8, ch.length);
+        return apdu;
+    }
+
+    private static byte[] batchAPDU(byte[] ids, int first, int count) {
+        byte[] apdu = new byte[5 + 11 * count];
+        apdu[1] = 0x09;
+        apdu[4] = (byte)(11 * count);
+        for (int i = 0; i < count; i++) {
+            apdu[6 + 11 * i] = ids[i % ids.length];
+            apdu[7 + 11 * i] = 8;
+            System.arraycopy(challenge(first + i), 0, apdu, 8 + 11 * i, 8);
+        }
+        return apdu;
+    }
+
+    @Test
+    public void sameAsSingle() {
+        byte[] ids = {0, 1, 1, 0};
+        byte[] resp = sim.transmitCommand(batchAPDU(ids, 0, ids.length));
+        assertEquals(20 + 32 + 32 + 20 + 2, resp.length);
+
+        int pos = 0;
+        for (int i = 0; i < ids.length; i++) {
+            byte[] single = sim.transmitCommand(hmacAPDU(ids[i], challenge(i)));
+            for (int j = 0; j < single.length - 2; j++)
+                assertEquals(single[j], resp[pos++]);
+        }
+        assertEquals((byte)0x90, resp[pos++]);
+        assertEquals((byte)0x00, resp[pos++]);
+    }
+
+    @Test
+    public void unusedSlot() {
+        byte[] ids = {0, 2};
+        byte[] resp = sim.transmitCommand(batchAPDU(ids, 0, ids.length));
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x83}, resp);
+    }
+
+    @Test
+    public void tooLong() {
+        byte[] ids = {0};
+        byte[] resp = sim.transmitCommand(batchAPDU(ids, 0, BATCH + 1));
+        assertArrayEquals(new byte[]{(byte)0x67, (byte)0x00}, resp);
+    }
+
+    @Test
+    public void roundTrips() {
+        byte[] ids = {0};
+
+        // Same loop as OTPCard_manyHMAC_Test, one APDU per HMAC
+        int single_apdus = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < CHALLENGES; i++) {
+            byte[] resp = sim.transmitCommand(hmacAPDU((byte)0, challenge(i)));
+            assertEquals(22, resp.length);
+            single_apdus++;
+        }
+        long single_ns = System.nanoTime() - start;
+
+        int batch_apdus = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < CHALLENGES; i += BATCH) {
+            byte[] resp = sim.transmitCommand(batchAPDU(ids, i, BATCH));
+            assertEquals(20 * BATCH + 2, resp.length);
+            batch_apdus++;
+        }
+        long batch_ns = System.nanoTime() - start;
+
+        System.out.println("HMAC:       " + single_apdus + " APDUs, " + single_ns / 1000 + " us");
+        System.out.println("BATCH_HMAC: " + batch_apdus + " APDUs, " + batch_ns / 1000 + " us");
+        System.out.println("Round trips saved: " + (single_apdus - batch_apdus));
+    }
+}
@@ -0,0 +1,209 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+public class OTPCard_bulkStore_Test {
+    private static final int MAX_SECRETS = 100;
+    private static final byte[] OK = {(byte)0x90, (byte)0x00};
+    private static final byte[] CHALLENGE = {'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+
+    private Simulator sim;
+
+    @BeforeEach
+    void setup() {
+        setup(new byte[0]);
+    }
+
+    // Optional slab size is appended to AD
+    private void setup(byte[] slab) {
+        sim = new Simulator();
+        // Install and select
+        AID appletAID = AIDUtil.create("A000000002020101");
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         (byte)(0x09 + slab.length),  // AD len
+                         (byte)(MAX_SECRETS >> 8), (byte)MAX_SECRETS, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        params = Arrays.copyOf(params, params.length + slab.length);
+        System.arraycopy(slab, 0, params, params.length - slab.length, slab.length);
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        byte[] resp = sim.transmitCommand(apdu_pin);
+        assertArrayEquals(OK, resp);
+    }
+
+    // SAVE_NEW_SECRET data, secret and name depend on id
+    private static byte[] entry(int id, byte method) {
+        return entry(id, method, 16);
+    }
+
+    private static byte[] entry(int id, byte method, int secret_len) {
+        byte[] name = ("KEY" + id).getBytes();
+        byte[] data = new byte[2 + 1 + secret_len + 1 + name.length + 1];
+        int pos = 0;
+        data[pos++] = (byte)(id >> 8);
+        data[pos++] = (byte)id;
+        data[pos++] = (byte)secret_len;
+        for (int i = 0; i < secret_len; i++)
+            data[pos++] = (byte)(id + i);
+        data[pos++] = (byte)name.length;
+        System.arraycopy(name, 0, data, pos, name.length);
+        pos += name.length;
+        data[pos++] = method;
+        return data;
+    }
+
+    private static byte[] shortAPDU(byte ins, byte[] data) {
+        byte[] apdu = new byte[5 + data.length];
+        apdu[1] = ins;
+        apdu[4] = (byte)data.length;
+        System.arraycopy(data, 0, apdu, 5, data.length);
+        return apdu;
+    }
+
+    private static byte[] extendedAPDU(byte ins, byte[] data) {
+        byte[] apdu = new byte[7 + data.length];
+        apdu[1] = ins;
+        apdu[5] = (byte)(data.length >> 8);
+        apdu[6] = (byte)data.length;
+        System.arraycopy(data, 0, apdu, 7, data.length);
+        return apdu;
+    }
+
+    private static byte[] bulk(int first, int count, int bad) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int id = first; id < first + count; id++) {
+            byte[] data = entry(id, id == bad ? (byte)7 : (byte)(1 + id % 3));
+            out.write(data.length);
+            out.write(data, 0, data.length);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] hmac(int id) {
+        byte[] data = new byte[3 + CHALLENGE.length];
+        data[0] = (byte)(id >> 8);
+        data[1] = (byte)id;
+        data[2] = (byte)CHALLENGE.length;
+        System.arraycopy(CHALLENGE, 0, data, 3, CHALLENGE.length);
+        return sim.transmitCommand(shortAPDU((byte)0x01, data));
+    }
+
+    private byte[] hmacByName(int id) {
+        byte[] name = ("KEY" + id).getBytes();
+        byte[] data = new byte[1 + name.length + 1 + CHALLENGE.length];
+        data[0] = (byte)name.length;
+        System.arraycopy(name, 0, data, 1, name.length);
+        data[1 + name.length] = (byte)CHALLENGE.length;
+        System.arraycopy(CHALLENGE, 0, data, 2 + name.length, CHALLENGE.length);
+        byte[] apdu = shortAPDU((byte)0x01, data);
+        apdu[2] = (byte)0x80;
+        return sim.transmitCommand(apdu);
+    }
+
+    @Test
+    public void sameAsSingle() {
+        assertArrayEquals(OK, sim.transmitCommand(extendedAPDU((byte)0x0E, bulk(0, MAX_SECRETS, -1))));
+
+        Simulator bulk_sim = sim;
+        setup();
+        for (int id = 0; id < MAX_SECRETS; id++)
+            assertArrayEquals(OK, sim.transmitCommand(shortAPDU((byte)0x03, entry(id, (byte)(1 + id % 3)))));
+        Simulator single_sim = sim;
+
+        for (int id = 0; id < MAX_SECRETS; id++) {
+            sim = single_sim;
+            byte[] expected = hmac(id);
+            sim = bulk_sim;
+            assertArrayEquals(expected, hmac(id));
+            assertArrayEquals(expected, hmacByName(id));
+        }
+    }
+
+    @Test
+    public void shortAPDU() {
+        final int[] hmac_len = {20, 32, 64};
+        assertArrayEquals(OK, sim.transmitCommand(shortAPDU((byte)0x0E, bulk(0, 8, -1))));
+        for (int id = 0; id < 8; id++)
+            assertEquals(hmac_len[id % 3] + 2, hmac(id).length);
+    }
+
+    @Test
+    public void allOrNothing() {
+        assertArrayEquals(OK, sim.transmitCommand(shortAPDU((byte)0x0E, bulk(0, 4, -1))));
+        byte[] before = hmac(2);
+
+        // Secrets 2..9 are overwritten, the last of them has unknown method
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x81}, sim.transmitCommand(extendedAPDU((byte)0x0E, bulk(2, 8, 9))));
+        assertArrayEquals(before, hmac(2));
+        assertArrayEquals(before, hmacByName(2));
+        for (int id = 4; id < 10; id++) {
+            assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x83}, hmac(id));
+            assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x83}, hmacByName(id));
+        }
+
+        // Malformed list
+        byte[] data = bulk(4, 3, -1);
+        data[0] = (byte)(data.length);
+        assertArrayEquals(new byte[]{(byte)0x67, (byte)0x00}, sim.transmitCommand(shortAPDU((byte)0x0E, data)));
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x83}, hmac(4));
+    }
+
+    @Test
+    public void slabFull() {
+        setup(new byte[]{0x00, 40});
+
+        // Every entry has 17 bytes of secret and name, each of them fits alone, all three don't
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int id = 0; id < 3; id++) {
+            byte[] data = entry(id, (byte)1, 13);
+            out.write(data.length);
+            out.write(data, 0, data.length);
+        }
+        byte[] data = out.toByteArray();
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x84}, sim.transmitCommand(shortAPDU((byte)0x0E, data)));
+
+        // Space is checked before transaction is started. Rollback of secrets written in
+        // transaction can't be checked here, abortTransaction of jcardsim doesn't restore them
+        for (int id = 0; id < 3; id++) {
+            assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x83}, hmac(id));
+            assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x83}, hmacByName(id));
+        }
+
+        // Two of them fit
+        byte[] two = Arrays.copyOf(data, 2 * (data.length / 3));
+        assertArrayEquals(OK, sim.transmitCommand(shortAPDU((byte)0x0E, two)));
+        assertArrayEquals(hmac(1), hmacByName(1));
+    }
+
+    @Test
+    public void roundTrips() {
+        long start = System.nanoTime();
+        for (int id = 0; id < MAX_SECRETS; id++)
+            assertArrayEquals(OK, sim.transmitCommand(shortAPDU((byte)0x03, entry(id, (byte)1))));
+        long single_ns = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        assertArrayEquals(OK, sim.transmitCommand(extendedAPDU((byte)0x0E, bulk(0, MAX_SECRETS, -1))));
+        long bulk_ns = System.nanoTime() - start;
+
+        System.out.println("SAVE_NEW_SECRET: " + MAX_SECRETS + " APDUs and transactions, " + single_ns / 1000 + " us");
+        System.out.println("SAVE_SECRETS:    1 APDU and transaction, " + bulk_ns / 1000 + " us");
+    }
+}
@@ -0,0 +1,127 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class OTPCard_costModel_Test {
+    private static final int ITERATIONS = 100;
+    // Several times more than uses, which fill accumulator of usage statistics
+    private static final int HMAC_ITERATIONS = 3 * 256;
+    private static final byte[] OK = {(byte)0x90, (byte)0x00};
+
+    private OTPCardCostModel card;
+
+    @BeforeEach
+    void setup() throws Exception {
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        card = new OTPCardCostModel(params);
+
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        assertArrayEquals(OK, card.transmit(apdu_pin));
+
+        // Slot 0 uses HMAC signature of the card, slot 1 uses digest, slot 2 is HOTP, slot 3 is TOTP
+        byte[] apdu_hw = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+        assertArrayEquals(OK, card.transmit(apdu_hw));
+        byte[] apdu_sw = {(byte)0x00, 0x03, 0x01, 0x00, 15, 0, 1, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+        assertArrayEquals(OK, card.transmit(apdu_sw));
+        byte[] apdu_hotp = {(byte)0x00, 0x03, 0x00, 0x00, 26, 0, 2, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'H', 'O', 'T', 'P', 1,
+                            10, 1, 6, 0, 0, 0, 0, 0, 0, 0, 0};
+        assertArrayEquals(OK, card.transmit(apdu_hotp));
+        byte[] apdu_totp = {(byte)0x00, 0x03, 0x00, 0x00, 28, 0, 3, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'T', 'O', 'T', 'P', 1,
+                            12, 2, 6, 0, 30, 0, 0, 0, 0, 0, 0, 0, 0};
+        assertArrayEquals(OK, card.transmit(apdu_totp));
+        card.clear();
+    }
+
+    @Test
+    public void readOnlyCommands() {
+        byte[] apdu_info = {(byte)0x00, 0x08, 0x00, 0x00, 0x00};
+        byte[] apdu_status = {(byte)0x00, 0x02, 0x00, 0x00, 2, 0, 0};
+        byte[] apdu_totp = {(byte)0x00, 0x0B, 0x00, 0x00, 10, 0, 3, 0, 0, 0, 0, 0x60, 0, 0, 0};
+        for (byte[] apdu : new byte[][]{apdu_info, apdu_status, apdu_totp}) {
+            card.transmit(apdu);
+            assertEquals(0, card.last().persistentBytes);
+            assertEquals(0, card.last().transactions);
+        }
+    }
+
+    @Test
+    public void hmac() {
+        for (int id = 0; id < 2; id++) {
+            byte[] apdu_hmac = {(byte)0x00, 0x01, 0x00, 0x00, 12, 0, (byte)id, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+            for (int i = 0; i < HMAC_ITERATIONS; i++) {
+                card.transmit(apdu_hmac);
+                // Inner hash of key block and challenge, outer hash of key block and inner hash
+                assertEquals(4, card.last().hashBlocks);
+                assertEquals(0, card.last().persistentBytes);
+                assertEquals(0, card.last().transactions);
+            }
+        }
+
+        byte[] challenge = new byte[200];
+        byte[] apdu_long = new byte[5 + 3 + challenge.length];
+        apdu_long[1] = 0x01;
+        apdu_long[4] = (byte)(apdu_long.length - 5);
+        apdu_long[6] = 1;
+        apdu_long[7] = (byte)challenge.length;
+        card.transmit(apdu_long);
+        assertEquals(5 + 2, card.last().hashBlocks);
+    }
+
+    @Test
+    public void hotp() {
+        byte[] apdu_hotp = {(byte)0x00, 0x0A, 0x00, 0x00, 2, 0, 2};
+        for (int i = 0; i < ITERATIONS; i++) {
+            card.transmit(apdu_hotp);
+            // Counter is incremented in persistent memory
+            assertEquals(1, card.last().persistentWrites);
+        }
+        assertEquals(ITERATIONS, card.cost((byte)0x0A).apdus);
+    }
+
+    @Test
+    public void saveSecret() {
+        byte[] apdu_store = {(byte)0x00, 0x03, 0x01, 0x00, 15, 0, 4, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'K', 'E', 'Y', '4', 2};
+        card.transmit(apdu_store);
+        assertEquals(1, card.last().transactions);
+        assertTrue(card.last().persistentBytes >= 10);
+    }
+
+    @Test
+    public void profile() {
+        byte[][] apdus = {
+            {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'},
+            {(byte)0x00, 0x08, 0x00, 0x00, 0x00},
+            {(byte)0x00, 0x02, 0x00, 0x00, 2, 0, 0},
+            {(byte)0x00, 0x01, 0x00, 0x00, 12, 0, 0, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'},
+            {(byte)0x00, 0x01, 0x00, 0x00, 12, 0, 1, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'},
+            {(byte)0x00, 0x01, (byte)0x80, 0x00, 15, 4, 'N', 'A', 'M', 'E', 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'},
+            {(byte)0x00, 0x09, 0x00, 0x00, 12, 0, 0, 1, 0, 0, 1, 1, 0, 0, 0, 1, 1},
+            {(byte)0x00, 0x0A, 0x00, 0x00, 2, 0, 2},
+            {(byte)0x00, 0x0B, 0x00, 0x00, 11, 0, 3, 0, 0, 0, 0, 0x60, 0, 0, 0, 1},
+            {(byte)0x00, 0x0D, 0x00, 0x00, 2, 0, 0},
+            {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 4, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'K', 'E', 'Y', '4', 1},
+            {(byte)0x00, 0x04, 0x00, 0x00, 2, 0, 4},
+        };
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (byte[] apdu : apdus) {
+                byte[] resp = card.transmit(apdu);
+                assertArrayEquals(OK, Arrays.copyOfRange(resp, resp.length - 2, resp.length));
+            }
+        }
+        System.out.println("Cost per APDU:");
+        System.out.print(card.report());
+    }
+}
@@ -0,0 +1,96 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+public class OTPCard_extendedLength_Test {
+    private Simulator sim;
+
+    @BeforeEach
+    void setup() {
+        sim = new Simulator();
+        // Install and select
+        AID appletAID = AIDUtil.create("A000000002020101");
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        byte[] resp = sim.transmitCommand(apdu_pin);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+        byte[] apdu_store = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+        resp = sim.transmitCommand(apdu_store);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+    }
+
+    // Extended APDU with Lc and Le encoded with 3 and 2 bytes
+    private static byte[] extendedAPDU(byte ins, byte[] data) {
+        byte[] apdu = new byte[7 + data.length + 2];
+        apdu[1] = ins;
+        apdu[4] = 0;
+        apdu[5] = (byte)(data.length >> 8);
+        apdu[6] = (byte)data.length;
+        System.arraycopy(data, 0, apdu, 7, data.length);
+        return apdu;
+    }
+
+    private static byte[] challenge(int i) {
+        byte[] ch = new byte[8];
+        for (int j = 0; j < 8; j++)
+            ch[j] = (byte)((i >> (8*j)) & 0xFF);
+        return ch;
+    }
+
+    @Test
+    public void hmac() {
+        byte[] data = {0, 0, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+        byte[] resp = sim.transmitCommand(extendedAPDU((byte)0x01, data));
+        assertArrayEquals(new byte[]{(byte)0x51, (byte)0xF8, (byte)0x9F, (byte)0x78, (byte)0xDA,
+                                     (byte)0x44, (byte)0x4A, (byte)0xA4, (byte)0x10, (byte)0x40,
+                                     (byte)0x4C, (byte)0xF7, (byte)0xC0, (byte)0x27, (byte)0x6A,
+                                     (byte)0x71, (byte)0x40, (byte)0xC6, (byte)0xF0, (byte)0xBD,
+                                     (byte)0x90, (byte)0x00}, resp);
+    }
+
+    @Test
+    public void batchHMAC() {
+        // 2200 bytes of requests, 4000 bytes of response
+        final int count = 200;
+        byte[] data = new byte[11 * count];
+        for (int i = 0; i < count; i++) {
+            data[11 * i] = 0;
+            data[11 * i + 1] = 0;
+            data[11 * i + 2] = 8;
+            System.arraycopy(challenge(i), 0, data, 11 * i + 3, 8);
+        }
+        byte[] resp = sim.transmitCommand(extendedAPDU((byte)0x09, data));
+        assertEquals(20 * count + 2, resp.length);
+        assertEquals((byte)0x90, resp[20 * count]);
+        assertEquals((byte)0x00, resp[20 * count + 1]);
+
+        for (int i = 0; i < count; i += 37) {
+            byte[] ch = challenge(i);
+            byte[] apdu = {(byte)0x00, 0x01, 0x00, 0x00, 11,
+                           0, 0,
+                           8, ch[0], ch[1], ch[2], ch[3], ch[4], ch[5], ch[6], ch[7]};
+            byte[] single = sim.transmitCommand(apdu);
+            for (int j = 0; j < 20; j++)
+                assertEquals(single[j], resp[20 * i + j]);
+        }
+    }
+}
@@ -1,6 +1,12 @@
 package com.vladtcvs.otpcard;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -23,8 +29,8 @@ public class OTPCard_getInfo_Test {
                          (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
                          0x01, // CI len
                          0x00, // CI data
-                         0x08,  // AD len
-                         0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
                         };
         sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
         sim.selectApplet(appletAID);
@@ -35,14 +41,82 @@ public class OTPCard_getInfo_Test {
         // Send APDU
         byte[] apdu = {(byte)0x00, 0x08, 0x00, 0x00, 5, 0x00, 0x00, 0x00, 0x00, 0x00};
         byte[] resp = sim.transmitCommand(apdu);
-        assertArrayEquals(new byte[]{(byte)0x08,
+        assertArrayEquals(new byte[]{0x00, 0x08,
                                      (byte)0x08,
                                      64,
                                      1, // SHA-1
-                                     0, // SHA-256
-                                     0, // SHA-512
+                                     1, // SHA-256
+                                     1, // SHA-512
                                      0x21, 0x22, 0x23, 0x24,
+                                     0x02, 0x40, // free bytes
                                      (byte)0x90, 0x00}, resp);
     }
-}
 
+    // Fields of extended info by tag
+    private static Map<Integer, byte[]> parseTLV(byte[] resp) {
+        assertArrayEquals(new byte[]{(byte)0x90, 0x00}, Arrays.copyOfRange(resp, resp.length - 2, resp.length));
+        Map<Integer, byte[]> fields = new HashMap<>();
+        int pos = 0;
+        while (pos < resp.length - 2) {
+            int tag = resp[pos] & 0xFF;
+            int len = resp[pos + 1] & 0xFF;
+            fields.put(tag, Arrays.copyOfRange(resp, pos + 2, pos + 2 + len));
+            pos += 2 + len;
+        }
+        assertEquals(resp.length - 2, pos);
+        return fields;
+    }
+
+    private static int getShort(byte[] value, int off) {
+        return ((value[off] & 0xFF) << 8) | (value[off + 1] & 0xFF);
+    }
+
+    @Test
+    public void ExtendedInfo_Test() {
+        byte[] apdu = {(byte)0x00, 0x08, 0x01, 0x00, 0x00};
+        Map<Integer, byte[]> info = parseTLV(sim.transmitCommand(apdu));
+
+        assertArrayEquals(new byte[]{0x21, 0x22, 0x23, 0x24}, info.get(0x01));
+        assertArrayEquals(new byte[]{0x00, 0x08, 0x00, 0x00, 0x00, 0x08}, info.get(0x02));
+        assertArrayEquals(new byte[]{0x08, 64, 6, 8}, info.get(0x03));
+        assertArrayEquals(new byte[]{0x02, 0x40, 0x02, 0x40}, info.get(0x04));
+
+        byte[] memory = info.get(0x05);
+        assertEquals(12, memory.length);
+        assertTrue(getShort(memory, 0) > 0 || getShort(memory, 2) > 0);
+
+        // jcardsim has digests and HMAC signatures of all methods
+        assertArrayEquals(new byte[]{3, 3, 3}, info.get(0x06));
+
+        byte[] sizes = info.get(0x07);
+        assertEquals(8, sizes.length);
+        assertEquals(255, getShort(sizes, 0));
+        assertEquals(256, getShort(sizes, 2));
+        // jcardsim gives APDU buffer of 260 bytes to short APDU
+        assertEquals(260 - 7, getShort(sizes, 4));
+        assertEquals(260, getShort(sizes, 6));
+
+        // and buffer of max size to extended APDU
+        byte[] apdu_ext = {(byte)0x00, 0x08, 0x01, 0x00, 0x00, 0x00, 0x00};
+        sizes = parseTLV(sim.transmitCommand(apdu_ext)).get(0x07);
+        assertEquals(255, getShort(sizes, 0));
+        assertEquals(256, getShort(sizes, 2));
+        assertEquals(0x7FFF - 7, getShort(sizes, 4));
+        assertEquals(0x7FFF, getShort(sizes, 6));
+    }
+
+    @Test
+    public void ExtendedInfoSlots_Test() {
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, sim.transmitCommand(apdu_pin));
+        for (byte id = 0; id < 3; id++) {
+            byte[] apdu_store = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, id, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+            assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, sim.transmitCommand(apdu_store));
+        }
+
+        byte[] apdu = {(byte)0x00, 0x08, 0x01, 0x00, 0x00};
+        Map<Integer, byte[]> info = parseTLV(sim.transmitCommand(apdu));
+        assertArrayEquals(new byte[]{0x00, 0x08, 0x00, 0x03, 0x00, 0x05}, info.get(0x02));
+        assertArrayEquals(new byte[]{0x02, 0x40, 0x02, 0x40 - 3 * 10}, info.get(0x04));
+    }
+}
@@ -0,0 +1,200 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+public class OTPCard_hkdf_Test {
+    private static final int ITERATIONS = 1000;
+    private static final byte[] OK = {(byte)0x90, (byte)0x00};
+    private static final byte[] NOT_SATISFIED = {(byte)0x69, (byte)0x85};
+    private static final byte[] WRONG_LENGTH = {(byte)0x67, (byte)0x00};
+    private static final byte[] SECRET = {'S', 'E', 'C', 'R', 'E', 'T'};
+    private static final byte[] SALT = {'S', 'A', 'L', 'T', 1, 2, 3, 4};
+    private static final byte[] INFO = {'s', 'e', 'r', 'v', 'i', 'c', 'e'};
+    private static final String[] ALGORITHMS = {"HmacSHA1", "HmacSHA256", "HmacSHA512"};
+
+    private Simulator sim;
+
+    @BeforeEach
+    void setup() {
+        sim = new Simulator();
+        // Install and select
+        AID appletAID = AIDUtil.create("A000000002020101");
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_pin));
+
+        // Slots 0..2 use HMAC signature of the card, slots 3..5 use digest
+        for (int id = 0; id < 6; id++) {
+            byte[] apdu = {(byte)0x00, 0x03, (byte)(id < 3 ? 0 : 1), 0x00, 15, 0, (byte)id,
+                           6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', (byte)(1 + id % 3)};
+            assertArrayEquals(OK, sim.transmitCommand(apdu));
+        }
+    }
+
+    private static byte[] command(byte p1, byte p2, byte[] data) {
+        byte[] apdu = new byte[5 + data.length];
+        apdu[1] = 0x11;
+        apdu[2] = p1;
+        apdu[3] = p2;
+        apdu[4] = (byte)data.length;
+        System.arraycopy(data, 0, apdu, 5, data.length);
+        return apdu;
+    }
+
+    private byte[] derive(int id, byte[] salt, byte[] info, int key_len, boolean keep) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(id >> 8);
+        data.write(id);
+        data.write(salt.length);
+        data.write(salt, 0, salt.length);
+        data.write(info.length);
+        data.write(info, 0, info.length);
+        data.write(key_len);
+        return sim.transmitCommand(command((byte)(keep ? 1 : 0), (byte)0, data.toByteArray()));
+    }
+
+    private byte[] expand(byte[] info, int key_len) {
+        byte[] data = new byte[info.length + 2];
+        data[0] = (byte)info.length;
+        System.arraycopy(info, 0, data, 1, info.length);
+        data[info.length + 1] = (byte)key_len;
+        return sim.transmitCommand(command((byte)0, (byte)1, data));
+    }
+
+    // RFC 5869 HKDF with secret as IKM
+    private static byte[] expected(int id, byte[] salt, byte[] info, int key_len) throws Exception {
+        String algorithm = ALGORITHMS[id % 3];
+        Mac mac = Mac.getInstance(algorithm);
+        if (salt.length == 0)
+            salt = new byte[mac.getMacLength()];
+        mac.init(new SecretKeySpec(salt, algorithm));
+        byte[] prk = mac.doFinal(SECRET);
+
+        mac.init(new SecretKeySpec(prk, algorithm));
+        ByteArrayOutputStream okm = new ByteArrayOutputStream();
+        byte[] block = new byte[0];
+        for (int i = 1; okm.size() < key_len; i++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte)i);
+            block = mac.doFinal();
+            okm.write(block, 0, block.length);
+        }
+        byte[] resp = Arrays.copyOf(okm.toByteArray(), key_len + 2);
+        resp[key_len] = (byte)0x90;
+        resp[key_len + 1] = 0x00;
+        return resp;
+    }
+
+    @Test
+    public void keys() throws Exception {
+        for (int id = 0; id < 6; id++) {
+            assertArrayEquals(expected(id, SALT, INFO, 32), derive(id, SALT, INFO, 32, false));
+            assertArrayEquals(expected(id, SALT, INFO, 1), derive(id, SALT, INFO, 1, false));
+            assertArrayEquals(expected(id, SALT, INFO, 255), derive(id, SALT, INFO, 255, false));
+            assertArrayEquals(expected(id, new byte[0], new byte[0], 42), derive(id, new byte[0], new byte[0], 42, false));
+            assertArrayEquals(expected(id, new byte[64], new byte[128], 100), derive(id, new byte[64], new byte[128], 100, false));
+            assertArrayEquals(OK, derive(id, SALT, INFO, 0, false));
+        }
+    }
+
+    @Test
+    public void keptPRK() throws Exception {
+        byte[] other = {'o', 't', 'h', 'e', 'r'};
+        for (int id = 0; id < 6; id++) {
+            assertArrayEquals(expected(id, SALT, INFO, 32), derive(id, SALT, INFO, 32, true));
+            assertArrayEquals(expected(id, SALT, other, 64), expand(other, 64));
+            assertArrayEquals(expected(id, SALT, INFO, 16), expand(INFO, 16));
+
+            // HMAC with other key between expansions
+            byte[] apdu_hmac = {(byte)0x00, 0x01, 0x00, 0x00, 4, 0, (byte)((id + 1) % 6), 1, 0};
+            sim.transmitCommand(apdu_hmac);
+            assertArrayEquals(expected(id, SALT, other, 200), expand(other, 200));
+        }
+
+        // PRK is dropped by derivation without keep, changed secret and deselect
+        assertArrayEquals(expected(0, SALT, INFO, 32), derive(0, SALT, INFO, 32, false));
+        assertArrayEquals(NOT_SATISFIED, expand(INFO, 32));
+
+        assertArrayEquals(OK, derive(3, SALT, INFO, 0, true));
+        byte[] apdu_store = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 3, 6, 'O', 'T', 'H', 'E', 'R', 'S', 4, 'N', 'A', 'M', 'E', 1};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_store));
+        assertArrayEquals(NOT_SATISFIED, expand(INFO, 32));
+
+        assertArrayEquals(OK, derive(0, SALT, INFO, 0, true));
+        sim.selectApplet(AIDUtil.create("A000000002020101"));
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_pin));
+        assertArrayEquals(NOT_SATISFIED, expand(INFO, 32));
+    }
+
+    @Test
+    public void byName() throws Exception {
+        byte[] data = {4, 'N', 'A', 'M', 'E', 4, 'S', 'A', 'L', 'T', 7, 's', 'e', 'r', 'v', 'i', 'c', 'e', 32};
+        byte[] apdu = command((byte)0x80, (byte)0, data);
+        assertArrayEquals(expected(0, new byte[]{'S', 'A', 'L', 'T'}, INFO, 32), sim.transmitCommand(apdu));
+    }
+
+    @Test
+    public void wrongArguments() {
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x83}, derive(7, SALT, INFO, 32, false));
+        assertArrayEquals(WRONG_LENGTH, derive(0, new byte[65], INFO, 32, false));
+        assertArrayEquals(WRONG_LENGTH, derive(0, SALT, new byte[129], 32, false));
+        byte[] data = {0, 0, 4, 'S', 'A', 'L', 'T', 7, 's', 'e', 'r', 'v', 'i', 'c', 'e'};
+        assertArrayEquals(WRONG_LENGTH, sim.transmitCommand(command((byte)0, (byte)0, data)));
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x86}, sim.transmitCommand(command((byte)0, (byte)2, data)));
+
+        // Malformed command doesn't keep PRK
+        assertArrayEquals(WRONG_LENGTH, sim.transmitCommand(command((byte)1, (byte)0, data)));
+        assertArrayEquals(NOT_SATISFIED, expand(INFO, 32));
+
+        // Only HMAC secrets
+        byte[] apdu_store = {(byte)0x00, 0x03, 0x00, 0x00, 26, 0, 6, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'H', 'O', 'T', 'P', 1,
+                             10, 1, 6, 0, 0, 0, 0, 0, 0, 0, 0};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_store));
+        assertArrayEquals(NOT_SATISFIED, derive(6, SALT, INFO, 32, false));
+    }
+
+    @Test
+    public void latency() {
+        for (int id : new int[]{0, 3}) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++)
+                derive(id, SALT, INFO, 32, false);
+            long derive_ns = (System.nanoTime() - start) / ITERATIONS;
+
+            derive(id, SALT, INFO, 0, true);
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++)
+                expand(INFO, 32);
+            long expand_ns = (System.nanoTime() - start) / ITERATIONS;
+
+            String engine = id == 0 ? "signature" : "digest   ";
+            System.out.println("HKDF " + engine + " extract and expand: " + derive_ns + " ns/APDU, expand with kept PRK: " +
+                               expand_ns + " ns/APDU");
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+// Run with P1 = 0 (HMAC signature of the card) and P1 = 1 (digest based HMAC)
+public class OTPCard_hmacAlgorithms_Test {
+
+    // RFC 4231 test case 2
+    private static final byte[] JEFE_KEY = {'J', 'e', 'f', 'e'};
+    private static final byte[] JEFE_DATA = {'w', 'h', 'a', 't', ' ', 'd', 'o', ' ', 'y', 'a', ' ',
+                                             'w', 'a', 'n', 't', ' ', 'f', 'o', 'r', ' ',
+                                             'n', 'o', 't', 'h', 'i', 'n', 'g', '?'};
+
+    // Longest supported key
+    private static final byte[] LONG_KEY = new byte[64];
+    private static final byte[] LONG_DATA = {'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+
+    static {
+        for (int i = 0; i < LONG_KEY.length; i++)
+            LONG_KEY[i] = (byte)i;
+    }
+
+    // HMAC-SHA1
+    private static final byte[] JEFE_SHA1 = {
+        (byte)0xEF, (byte)0xFC, (byte)0xDF, (byte)0x6A, (byte)0xE5, (byte)0xEB, (byte)0x2F, (byte)0xA2,
+        (byte)0xD2, (byte)0x74, (byte)0x16, (byte)0xD5, (byte)0xF1, (byte)0x84, (byte)0xDF, (byte)0x9C,
+        (byte)0x25, (byte)0x9A, (byte)0x7C, (byte)0x79};
+
+    // HMAC-SHA1
+    private static final byte[] LONG_SHA1 = {
+        (byte)0xEB, (byte)0x6E, (byte)0x9E, (byte)0xEB, (byte)0x33, (byte)0xCE, (byte)0x71, (byte)0x85,
+        (byte)0xCC, (byte)0xF6, (byte)0xA7, (byte)0xD5, (byte)0x5A, (byte)0x5D, (byte)0x91, (byte)0x21,
+        (byte)0x7B, (byte)0xD5, (byte)0x17, (byte)0x95};
+
+    // HMAC-SHA256
+    private static final byte[] JEFE_SHA256 = {
+        (byte)0x5B, (byte)0xDC, (byte)0xC1, (byte)0x46, (byte)0xBF, (byte)0x60, (byte)0x75, (byte)0x4E,
+        (byte)0x6A, (byte)0x04, (byte)0x24, (byte)0x26, (byte)0x08, (byte)0x95, (byte)0x75, (byte)0xC7,
+        (byte)0x5A, (byte)0x00, (byte)0x3F, (byte)0x08, (byte)0x9D, (byte)0x27, (byte)0x39, (byte)0x83,
+        (byte)0x9D, (byte)0xEC, (byte)0x58, (byte)0xB9, (byte)0x64, (byte)0xEC, (byte)0x38, (byte)0x43};
+
+    // HMAC-SHA256
+    private static final byte[] LONG_SHA256 = {
+        (byte)0xB3, (byte)0xEE, (byte)0xA0, (byte)0xAA, (byte)0xF2, (byte)0x1B, (byte)0x0F, (byte)0x8A,
+        (byte)0xA8, (byte)0x27, (byte)0x6F, (byte)0x01, (byte)0x56, (byte)0x16, (byte)0xAE, (byte)0x81,
+        (byte)0x1E, (byte)0x79, (byte)0x82, (byte)0x74, (byte)0xFF, (byte)0xE3, (byte)0xA7, (byte)0x4E,
+        (byte)0x91, (byte)0xC6, (byte)0xE7, (byte)0xC3, (byte)0xF8, (byte)0x13, (byte)0xB8, (byte)0xB8};
+
+    // HMAC-SHA512
+    private static final byte[] JEFE_SHA512 = {
+        (byte)0x16, (byte)0x4B, (byte)0x7A, (byte)0x7B, (byte)0xFC, (byte)0xF8, (byte)0x19, (byte)0xE2,
+        (byte)0xE3, (byte)0x95, (byte)0xFB, (byte)0xE7, (byte)0x3B, (byte)0x56, (byte)0xE0, (byte)0xA3,
+        (byte)0x87, (byte)0xBD, (byte)0x64, (byte)0x22, (byte)0x2E, (byte)0x83, (byte)0x1F, (byte)0xD6,
+        (byte)0x10, (byte)0x27, (byte)0x0C, (byte)0xD7, (byte)0xEA, (byte)0x25, (byte)0x05, (byte)0x54,
+        (byte)0x97, (byte)0x58, (byte)0xBF, (byte)0x75, (byte)0xC0, (byte)0x5A, (byte)0x99, (byte)0x4A,
+        (byte)0x6D, (byte)0x03, (byte)0x4F, (byte)0x65, (byte)0xF8, (byte)0xF0, (byte)0xE6, (byte)0xFD,
+        (byte)0xCA, (byte)0xEA, (byte)0xB1, (byte)0xA3, (byte)0x4D, (byte)0x4A, (byte)0x6B, (byte)0x4B,
+        (byte)0x63, (byte)0x6E, (byte)0x07, (byte)0x0A, (byte)0x38, (byte)0xBC, (byte)0xE7, (byte)0x37};
+
+    // HMAC-SHA512
+    private static final byte[] LONG_SHA512 = {
+        (byte)0x58, (byte)0xBD, (byte)0xD0, (byte)0x9F, (byte)0x25, (byte)0xE8, (byte)0x00, (byte)0xD6,
+        (byte)0x49, (byte)0xFE, (byte)0x5B, (byte)0xA3, (byte)0xF7, (byte)0x1E, (byte)0xFC, (byte)0xA1,
+        (byte)0xBC, (byte)0x79, (byte)0x95, (byte)0x3D, (byte)0xBE, (byte)0x24, (byte)0x4E, (byte)0xF1,
+        (byte)0x76, (byte)0x94, (byte)0x55, (byte)0x8C, (byte)0xD2, (byte)0x23, (byte)0x71, (byte)0x63,
+        (byte)0x67, (byte)0x8F, (byte)0xCD, (byte)0xF6, (byte)0xA3, (byte)0xFC, (byte)0x2E, (byte)0x27,
+        (byte)0xE8, (byte)0xF1, (byte)0x20, (byte)0x66, (byte)0x8D, (byte)0x49, (byte)0x30, (byte)0x01,
+        (byte)0x9F, (byte)0x55, (byte)0x8F, (byte)0xC6, (byte)0x76, (byte)0x42, (byte)0xC5, (byte)0x96,
+        (byte)0x38, (byte)0x20, (byte)0x9C, (byte)0xBA, (byte)0x80, (byte)0x66, (byte)0xF4, (byte)0xB6};
+
+    private Simulator sim;
+
+    @BeforeEach
+    void setup() {
+        sim = new Simulator();
+        // Install and select
+        AID appletAID = AIDUtil.create("A000000002020101");
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        byte[] resp = sim.transmitCommand(apdu_pin);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+    }
+
+    private void store(byte p1, byte id, byte[] secret, byte method) {
+        byte[] apdu = new byte[5 + 9 + secret.length];
+        int pos = 0;
+        apdu[pos++] = 0x00;
+        apdu[pos++] = 0x03;
+        apdu[pos++] = p1;
+        apdu[pos++] = 0x00;
+        apdu[pos++] = (byte)(9 + secret.length);
+        apdu[pos++] = 0;
+        apdu[pos++] = id;
+        apdu[pos++] = (byte)secret.length;
+        for (int i = 0; i < secret.length; i++)
+            apdu[pos++] = secret[i];
+        apdu[pos++] = 4;
+        apdu[pos++] = 'N';
+        apdu[pos++] = 'A';
+        apdu[pos++] = 'M';
+        apdu[pos++] = 'E';
+        apdu[pos++] = method;
+        byte[] resp = sim.transmitCommand(apdu);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+    }
+
+    private void checkHMAC(byte id, byte[] challenge, byte[] expected) {
+        byte[] apdu = new byte[5 + 3 + challenge.length];
+        int pos = 0;
+        apdu[pos++] = 0x00;
+        apdu[pos++] = 0x01;
+        apdu[pos++] = 0x00;
+        apdu[pos++] = 0x00;
+        apdu[pos++] = (byte)(3 + challenge.length);
+        apdu[pos++] = 0;
+        apdu[pos++] = id;
+        apdu[pos++] = (byte)challenge.length;
+        for (int i = 0; i < challenge.length; i++)
+            apdu[pos++] = challenge[i];
+        byte[] resp = sim.transmitCommand(apdu);
+
+        byte[] expected_resp = new byte[expected.length + 2];
+        System.arraycopy(expected, 0, expected_resp, 0, expected.length);
+        expected_resp[expected.length] = (byte)0x90;
+        expected_resp[expected.length + 1] = 0x00;
+        assertArrayEquals(expected_resp, resp);
+    }
+
+    @ParameterizedTest
+    @ValueSource(bytes = {0, 1})
+    public void SHA1(byte p1) {
+        store(p1, (byte)0, JEFE_KEY, (byte)1);
+        store(p1, (byte)1, LONG_KEY, (byte)1);
+        checkHMAC((byte)0, JEFE_DATA, JEFE_SHA1);
+        checkHMAC((byte)1, LONG_DATA, LONG_SHA1);
+    }
+
+    @ParameterizedTest
+    @ValueSource(bytes = {0, 1})
+    public void SHA256(byte p1) {
+        store(p1, (byte)0, JEFE_KEY, (byte)2);
+        store(p1, (byte)1, LONG_KEY, (byte)2);
+        checkHMAC((byte)0, JEFE_DATA, JEFE_SHA256);
+        checkHMAC((byte)1, LONG_DATA, LONG_SHA256);
+    }
+
+    @ParameterizedTest
+    @ValueSource(bytes = {0, 1})
+    public void SHA512(byte p1) {
+        store(p1, (byte)0, JEFE_KEY, (byte)3);
+        store(p1, (byte)1, LONG_KEY, (byte)3);
+        checkHMAC((byte)0, JEFE_DATA, JEFE_SHA512);
+        checkHMAC((byte)1, LONG_DATA, LONG_SHA512);
+    }
+}
@@ -0,0 +1,149 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.base.SimulatorRuntime;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+public class OTPCard_hmacCache_Test {
+    private static final int ITERATIONS = 1000;
+    private static final byte[] OK = {(byte)0x90, (byte)0x00};
+    private static final byte[] HMAC_SECRET_CHALLENGE = {(byte)0x51, (byte)0xF8, (byte)0x9F, (byte)0x78, (byte)0xDA,
+                                                         (byte)0x44, (byte)0x4A, (byte)0xA4, (byte)0x10, (byte)0x40,
+                                                         (byte)0x4C, (byte)0xF7, (byte)0xC0, (byte)0x27, (byte)0x6A,
+                                                         (byte)0x71, (byte)0x40, (byte)0xC6, (byte)0xF0, (byte)0xBD,
+                                                         (byte)0x90, (byte)0x00};
+
+    // Gives access to the applet instance
+    private static class AppletRuntime extends SimulatorRuntime {
+        Applet applet(AID aid) {
+            return getApplet(aid);
+        }
+    }
+
+    private Simulator sim;
+    private AID appletAID;
+    private byte[] slab;
+
+    @BeforeEach
+    void setup() throws Exception {
+        AppletRuntime runtime = new AppletRuntime();
+        sim = new Simulator(runtime);
+        // Install and select
+        appletAID = AIDUtil.create("A000000002020101");
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+
+        // Persistent array with secrets of all records
+        Field field = OTPCard.class.getDeclaredField("slab");
+        field.setAccessible(true);
+        slab = (byte[]) field.get(runtime.applet(appletAID));
+
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_pin));
+
+        // Slot 0 uses HMAC signature of the card, slot 1 uses digest, slot 2 has other secret
+        byte[] apdu_hw = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_hw));
+        byte[] apdu_sw = {(byte)0x00, 0x03, 0x01, 0x00, 15, 0, 1, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_sw));
+        byte[] apdu_other = {(byte)0x00, 0x03, 0x01, 0x00, 15, 0, 2, 6, 'O', 'T', 'H', 'E', 'R', 'S', 4, 'M', 'A', 'M', 'E', 1};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_other));
+    }
+
+    private byte[] hmac(int id) {
+        byte[] apdu = {(byte)0x00, 0x01, 0x00, 0x00, 12, 0, (byte)id, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+        return sim.transmitCommand(apdu);
+    }
+
+    // Number of HMACs, which read key from persistent memory. Slab is overwritten
+    // while they are computed, so only HMAC with key from RAM gives right result
+    private int countSlabReads(int[] ids, byte[][] expected, int iterations) {
+        byte[] saved = slab.clone();
+        Arrays.fill(slab, (byte)0xA5);
+        int reads = 0;
+        for (int i = 0; i < iterations; i++) {
+            int k = i % ids.length;
+            if (!Arrays.equals(expected[k], hmac(ids[k])))
+                reads++;
+        }
+        System.arraycopy(saved, 0, slab, 0, saved.length);
+        return reads;
+    }
+
+    @Test
+    public void hotSlot() {
+        for (int id = 0; id < 2; id++) {
+            assertArrayEquals(HMAC_SECRET_CHALLENGE, hmac(id));
+            assertEquals(0, countSlabReads(new int[]{id}, new byte[][]{HMAC_SECRET_CHALLENGE}, ITERATIONS));
+            assertArrayEquals(HMAC_SECRET_CHALLENGE, hmac(id));
+        }
+    }
+
+    @Test
+    public void invalidation() {
+        byte[] other = hmac(2);
+        assertArrayEquals(HMAC_SECRET_CHALLENGE, hmac(1));
+
+        // New secret of cached record is used at once
+        byte[] apdu_store = {(byte)0x00, 0x03, 0x01, 0x00, 15, 0, 1, 6, 'O', 'T', 'H', 'E', 'R', 'S', 4, 'M', 'A', 'M', 'E', 1};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_store));
+        assertArrayEquals(other, hmac(1));
+
+        byte[] apdu_delete = {(byte)0x00, 0x04, 0x00, 0x00, 2, 0, 1};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_delete));
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x83}, hmac(1));
+
+        // Cache is cleared on deselect
+        assertArrayEquals(HMAC_SECRET_CHALLENGE, hmac(0));
+        sim.selectApplet(appletAID);
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_pin));
+        assertEquals(1, countSlabReads(new int[]{0}, new byte[][]{HMAC_SECRET_CHALLENGE}, 1));
+    }
+
+    @Test
+    public void benchmark() {
+        byte[] other = hmac(2);
+        byte[][] expected = {HMAC_SECRET_CHALLENGE, other};
+        for (int id = 0; id < 2; id++) {
+            int[] hot = {id};
+            int[] alternating = {id, 2};
+            assertArrayEquals(HMAC_SECRET_CHALLENGE, hmac(id));
+
+            long start = System.nanoTime();
+            int hot_reads = countSlabReads(hot, expected, ITERATIONS);
+            long hot_ns = (System.nanoTime() - start) / ITERATIONS;
+
+            start = System.nanoTime();
+            int alternating_reads = countSlabReads(alternating, expected, ITERATIONS);
+            long alternating_ns = (System.nanoTime() - start) / ITERATIONS;
+
+            assertEquals(0, hot_reads);
+            // Only the first HMAC finds its key in RAM
+            assertEquals(ITERATIONS - 1, alternating_reads);
+            String engine = id == 0 ? "signature" : "digest   ";
+            System.out.println("HMAC " + engine + " hot slot:    " + hot_reads + " key reads from persistent memory per " +
+                               ITERATIONS + " HMACs, " + hot_ns + " ns/APDU");
+            System.out.println("HMAC " + engine + " alternating: " + alternating_reads + " key reads from persistent memory per " +
+                               ITERATIONS + " HMACs, " + alternating_ns + " ns/APDU");
+        }
+    }
+}
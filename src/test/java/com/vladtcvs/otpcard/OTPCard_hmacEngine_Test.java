@@ -0,0 +1,96 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+public class OTPCard_hmacEngine_Test {
+    private static final int ITERATIONS = 20000;
+
+    private static final byte[] HMAC_SECRET_CHALLENGE = {
+        (byte)0x51, (byte)0xF8, (byte)0x9F, (byte)0x78, (byte)0xDA,
+        (byte)0x44, (byte)0x4A, (byte)0xA4, (byte)0x10, (byte)0x40,
+        (byte)0x4C, (byte)0xF7, (byte)0xC0, (byte)0x27, (byte)0x6A,
+        (byte)0x71, (byte)0x40, (byte)0xC6, (byte)0xF0, (byte)0xBD,
+        (byte)0x90, (byte)0x00};
+
+    private Simulator sim;
+
+    @BeforeEach
+    void setup() {
+        sim = new Simulator();
+        // Install and select
+        AID appletAID = AIDUtil.create("A000000002020101");
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        byte[] resp = sim.transmitCommand(apdu_pin);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+        // Slot 0 - HMAC signature of the card, slot 1 - digest based HMAC
+        byte[] apdu_hw = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+        resp = sim.transmitCommand(apdu_hw);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+        byte[] apdu_sw = {(byte)0x00, 0x03, 0x01, 0x00, 15, 0, 1, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+        resp = sim.transmitCommand(apdu_sw);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+    }
+
+    private long measure(byte[] apdu) {
+        for (int i = 0; i < ITERATIONS / 10; i++)
+            sim.transmitCommand(apdu);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            sim.transmitCommand(apdu);
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    @Test
+    public void sameResult() {
+        byte[] apdu_hw = {(byte)0x00, 0x01, 0x00, 0x00, 12, 0, 0, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+        byte[] apdu_sw = {(byte)0x00, 0x01, 0x00, 0x00, 12, 0, 1, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+        assertArrayEquals(HMAC_SECRET_CHALLENGE, sim.transmitCommand(apdu_hw));
+        assertArrayEquals(HMAC_SECRET_CHALLENGE, sim.transmitCommand(apdu_sw));
+    }
+
+    @Test
+    public void emptySecret() {
+        // RFC 2104 HMAC-SHA1 with empty key and empty message
+        byte[] apdu_store = {(byte)0x00, 0x03, 0x00, 0x00, 9, 0, 2, 0, 4, 'N', 'A', 'M', 'E', 1};
+        byte[] resp = sim.transmitCommand(apdu_store);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+        byte[] apdu_hmac = {(byte)0x00, 0x01, 0x00, 0x00, 3, 0, 2, 0};
+        resp = sim.transmitCommand(apdu_hmac);
+        assertArrayEquals(new byte[]{(byte)0xFB, (byte)0xDB, (byte)0x1D, (byte)0x1B, (byte)0x18,
+                                     (byte)0xAA, (byte)0x6C, (byte)0x08, (byte)0x32, (byte)0x4B,
+                                     (byte)0x7D, (byte)0x64, (byte)0xB7, (byte)0x1F, (byte)0xB7,
+                                     (byte)0x63, (byte)0x70, (byte)0x69, (byte)0x0E, (byte)0x1D,
+                                     (byte)0x90, (byte)0x00}, resp);
+    }
+
+    @Test
+    public void benchmark() {
+        byte[] apdu_hw = {(byte)0x00, 0x01, 0x00, 0x00, 12, 0, 0, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+        byte[] apdu_sw = {(byte)0x00, 0x01, 0x00, 0x00, 12, 0, 1, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+        long hw_ns = measure(apdu_hw);
+        long sw_ns = measure(apdu_sw);
+        System.out.println("HMAC signature: " + hw_ns + " ns/APDU");
+        System.out.println("HMAC digest:    " + sw_ns + " ns/APDU");
+    }
+}
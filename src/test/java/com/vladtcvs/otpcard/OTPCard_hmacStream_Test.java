@@ -0,0 +1,164 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+public class OTPCard_hmacStream_Test {
+    private static final byte[] OK = {(byte)0x90, (byte)0x00};
+    private static final byte[] NOT_SATISFIED = {(byte)0x69, (byte)0x85};
+    private static final byte[] SECRET = {'S', 'E', 'C', 'R', 'E', 'T'};
+    private static final String[] ALGORITHMS = {"HmacSHA1", "HmacSHA256", "HmacSHA512"};
+
+    private Simulator sim;
+
+    @BeforeEach
+    void setup() {
+        sim = new Simulator();
+        // Install and select
+        AID appletAID = AIDUtil.create("A000000002020101");
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_pin));
+
+        // Slots 0..2 use HMAC signature of the card, slots 3..5 use digest
+        for (int id = 0; id < 6; id++) {
+            byte[] apdu = {(byte)0x00, 0x03, (byte)(id < 3 ? 0 : 1), 0x00, 15, 0, (byte)id,
+                           6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', (byte)(1 + id % 3)};
+            assertArrayEquals(OK, sim.transmitCommand(apdu));
+        }
+    }
+
+    private static byte[] command(byte ins, byte p2, byte[] data, int off, int len) {
+        byte[] apdu = new byte[5 + len];
+        apdu[1] = ins;
+        apdu[3] = p2;
+        apdu[4] = (byte)len;
+        System.arraycopy(data, off, apdu, 5, len);
+        return apdu;
+    }
+
+    private byte[] init(int id) {
+        return sim.transmitCommand(command((byte)0x0F, (byte)0, new byte[]{0, (byte)id}, 0, 2));
+    }
+
+    private byte[] update(byte[] data, int off, int len) {
+        return sim.transmitCommand(command((byte)0x0F, (byte)1, data, off, len));
+    }
+
+    private byte[] finish(byte[] data, int off, int len) {
+        return sim.transmitCommand(command((byte)0x0F, (byte)2, data, off, len));
+    }
+
+    private byte[] stream(int id, byte[] message, int chunk) {
+        assertArrayEquals(OK, init(id));
+        int pos = 0;
+        while (message.length - pos > chunk) {
+            assertArrayEquals(OK, update(message, pos, chunk));
+            pos += chunk;
+        }
+        return finish(message, pos, message.length - pos);
+    }
+
+    private static byte[] expected(int id, byte[] message) throws Exception {
+        Mac mac = Mac.getInstance(ALGORITHMS[id % 3]);
+        mac.init(new SecretKeySpec(SECRET, ALGORITHMS[id % 3]));
+        byte[] hmac = mac.doFinal(message);
+        byte[] resp = Arrays.copyOf(hmac, hmac.length + 2);
+        resp[hmac.length] = (byte)0x90;
+        resp[hmac.length + 1] = 0x00;
+        return resp;
+    }
+
+    @Test
+    public void longMessage() throws Exception {
+        byte[] message = new byte[5000];
+        for (int i = 0; i < message.length; i++)
+            message[i] = (byte)(i * 7);
+        for (int id = 0; id < 6; id++) {
+            assertArrayEquals(expected(id, message), stream(id, message, 200));
+            assertArrayEquals(expected(id, message), stream(id, message, 255));
+        }
+    }
+
+    @Test
+    public void shortMessage() throws Exception {
+        byte[] challenge = {'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+        for (int id = 0; id < 6; id++) {
+            byte[] apdu_hmac = {(byte)0x00, 0x01, 0x00, 0x00, 12, 0, (byte)id, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+            byte[] single = sim.transmitCommand(apdu_hmac);
+            assertArrayEquals(single, stream(id, challenge, 255));
+            assertArrayEquals(single, stream(id, challenge, 1));
+            assertArrayEquals(expected(id, new byte[0]), stream(id, new byte[0], 255));
+        }
+    }
+
+    @Test
+    public void byName() throws Exception {
+        byte[] apdu = {(byte)0x00, 0x0F, (byte)0x80, 0x00, 5, 4, 'N', 'A', 'M', 'E'};
+        assertArrayEquals(OK, sim.transmitCommand(apdu));
+        byte[] message = {1, 2, 3};
+        assertArrayEquals(expected(0, message), finish(message, 0, message.length));
+    }
+
+    @Test
+    public void session() {
+        byte[] message = {1, 2, 3};
+
+        // No session
+        assertArrayEquals(NOT_SATISFIED, update(message, 0, 3));
+        assertArrayEquals(NOT_SATISFIED, finish(message, 0, 3));
+        assertArrayEquals(OK, init(0));
+        assertEquals(22, finish(message, 0, 0).length);
+        assertArrayEquals(NOT_SATISFIED, finish(message, 0, 0));
+
+        // Other HMAC ends session
+        for (int id = 0; id < 6; id++) {
+            assertArrayEquals(OK, init(id));
+            assertArrayEquals(OK, update(message, 0, 3));
+            byte[] apdu_hmac = {(byte)0x00, 0x01, 0x00, 0x00, 4, 0, (byte)id, 1, 0};
+            sim.transmitCommand(apdu_hmac);
+            assertArrayEquals(NOT_SATISFIED, update(message, 0, 3));
+        }
+
+        // Changed secret ends session
+        assertArrayEquals(OK, init(3));
+        byte[] apdu_store = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 3, 6, 'O', 'T', 'H', 'E', 'R', 'S', 4, 'N', 'A', 'M', 'E', 1};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_store));
+        assertArrayEquals(NOT_SATISFIED, finish(message, 0, 3));
+
+        // Unused slot, wrong step, extra data after id
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x83}, init(7));
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x86}, sim.transmitCommand(command((byte)0x0F, (byte)3, message, 0, 3)));
+        assertArrayEquals(new byte[]{(byte)0x67, (byte)0x00}, sim.transmitCommand(command((byte)0x0F, (byte)0, new byte[]{0, 0, 0}, 0, 3)));
+    }
+
+    @Test
+    public void notHMAC() {
+        byte[] apdu_store = {(byte)0x00, 0x03, 0x00, 0x00, 26, 0, 6, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'H', 'O', 'T', 'P', 1,
+                             10, 1, 6, 0, 0, 0, 0, 0, 0, 0, 0};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_store));
+        assertArrayEquals(NOT_SATISFIED, init(6));
+    }
+}
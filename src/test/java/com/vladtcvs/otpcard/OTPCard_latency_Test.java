@@ -0,0 +1,162 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.base.SimulatorRuntime;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+public class OTPCard_latency_Test {
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 20000;
+
+    private static class AppletRuntime extends SimulatorRuntime {
+        Applet applet(AID aid) {
+            return getApplet(aid);
+        }
+    }
+
+    private Simulator sim;
+    private byte[] slab;
+    private byte[][] pads;
+
+    @BeforeEach
+    void setup() throws Exception {
+        AppletRuntime runtime = new AppletRuntime();
+        sim = new Simulator(runtime);
+        // Install and select
+        AID appletAID = AIDUtil.create("A000000002020101");
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+
+        Field field = OTPCard.class.getDeclaredField("slab");
+        field.setAccessible(true);
+        slab = (byte[]) field.get(runtime.applet(appletAID));
+        pads = new byte[2][];
+        String[] names = {"hmac_ipad", "hmac_opad"};
+        for (int i = 0; i < 2; i++) {
+            field = OTPCard.class.getDeclaredField(names[i]);
+            field.setAccessible(true);
+            pads[i] = (byte[]) field.get(runtime.applet(appletAID));
+        }
+    }
+
+    private long measure(byte[] apdu) {
+        return measure(new byte[][]{apdu});
+    }
+
+    // APDUs are sent in turn
+    private long measure(byte[][] apdus) {
+        for (int i = 0; i < WARMUP; i++)
+            sim.transmitCommand(apdus[i % apdus.length]);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            sim.transmitCommand(apdus[i % apdus.length]);
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    // HMACs which read key from slab. Slab is overwritten while they are sent,
+    // so only HMAC with key kept in RAM gives the right result
+    private int keyLoads(byte[][] apdus, byte[][] expected) {
+        byte[] saved = slab.clone();
+        Arrays.fill(slab, (byte)0xA5);
+        int loads = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (!Arrays.equals(expected[i % apdus.length], sim.transmitCommand(apdus[i % apdus.length])))
+                loads++;
+        }
+        System.arraycopy(saved, 0, slab, 0, saved.length);
+        return loads;
+    }
+
+    @Test
+    public void perINS() {
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        byte[] resp = sim.transmitCommand(apdu_pin);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+        byte[] apdu_store = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+        resp = sim.transmitCommand(apdu_store);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+        byte[] apdu_info = {(byte)0x00, 0x08, 0x00, 0x00, 5, 0x00, 0x00, 0x00, 0x00, 0x00};
+        byte[] apdu_status = {(byte)0x00, 0x02, 0x00, 0x00, 2, 0, 0};
+        byte[] apdu_hmac = {(byte)0x00, 0x01, 0x00, 0x00, 12, 0, 0, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+
+        long info_ns = measure(apdu_info);
+        long status_ns = measure(apdu_status);
+        long hmac_ns = measure(apdu_hmac);
+
+        // Key kept in RAM between HMACs must give the same HMAC as key read from slab
+        resp = sim.transmitCommand(apdu_hmac);
+        assertArrayEquals(new byte[]{(byte)0x51, (byte)0xF8, (byte)0x9F, (byte)0x78, (byte)0xDA,
+                                     (byte)0x44, (byte)0x4A, (byte)0xA4, (byte)0x10, (byte)0x40,
+                                     (byte)0x4C, (byte)0xF7, (byte)0xC0, (byte)0x27, (byte)0x6A,
+                                     (byte)0x71, (byte)0x40, (byte)0xC6, (byte)0xF0, (byte)0xBD,
+                                     (byte)0x90, (byte)0x00}, resp);
+
+        System.out.println("GET_INFO:          " + info_ns + " ns/APDU");
+        System.out.println("GET_SECRET_STATUS: " + status_ns + " ns/APDU");
+        System.out.println("HMAC:              " + hmac_ns + " ns/APDU");
+        System.out.println("HMAC hot path:     " + (hmac_ns - status_ns) + " ns over APDU dispatch");
+    }
+
+    // HMACs with one slot use key kept in RAM, HMACs with two slots in turn load key from slab every time.
+    // Key load is a short copy in jcardsim, its time is within noise of APDU dispatch,
+    // so paths are compared by amount of key loads and time is only printed
+    @Test
+    public void keyInRAM() {
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, sim.transmitCommand(apdu_pin));
+
+        // Slots 0 and 1 use HMAC signature of the card, slots 2 and 3 use digest
+        for (byte id = 0; id < 4; id++) {
+            byte flags = id < 2 ? (byte)0x00 : (byte)0x01;
+            byte[] apdu_store = {(byte)0x00, 0x03, flags, 0x00, 14, 0, id, 6, 'S', 'E', 'C', 'R', 'E', 'T', 3, 'K', 'E', (byte)('0' + id), 1};
+            assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, sim.transmitCommand(apdu_store));
+        }
+
+        String[] engines = {"signature", "digest"};
+        for (int engine = 0; engine < 2; engine++) {
+            byte[][] apdu_hmac = new byte[2][];
+            for (int i = 0; i < 2; i++)
+                apdu_hmac[i] = new byte[]{(byte)0x00, 0x01, 0x00, 0x00, 12, 0, (byte)(2 * engine + i), 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+            byte[][] one_slot = {apdu_hmac[0]};
+            byte[] expected = sim.transmitCommand(apdu_hmac[0]);
+            // Both slots have the same secret
+            assertArrayEquals(expected, sim.transmitCommand(apdu_hmac[1]));
+
+            // Key is loaded to RAM by the first HMAC of measurement, before slab is overwritten
+            long ram_ns = measure(one_slot);
+            assertEquals(0, keyLoads(one_slot, new byte[][]{expected}));
+            // SHA1 key is padded to 64 bytes block, rest of pads is not written by key load
+            for (byte[] pad : pads)
+                Arrays.fill(pad, 64, pad.length, (byte)0x11);
+            long load_ns = measure(apdu_hmac);
+            assertEquals(ITERATIONS, keyLoads(apdu_hmac, new byte[][]{expected, expected}));
+            for (byte[] pad : pads) {
+                for (int i = 64; i < pad.length; i++)
+                    assertEquals((byte)0x11, pad[i]);
+            }
+
+            System.out.println("HMAC with " + engines[engine] + ", key in RAM: " + ram_ns + " ns/APDU");
+            System.out.println("HMAC with " + engines[engine] + ", key loaded: " + load_ns + " ns/APDU");
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+public class OTPCard_listSecrets_Test {
+    private static final int MAX_SECRETS = 64;
+    private static final int NAME_LENGTH = 16;
+
+    private Simulator sim;
+
+    @BeforeEach
+    void setup() {
+        sim = new Simulator();
+        // Install and select
+        AID appletAID = AIDUtil.create("A000000002020101");
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         (byte)(MAX_SECRETS >> 8), (byte)MAX_SECRETS, NAME_LENGTH, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        byte[] resp = sim.transmitCommand(apdu_pin);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+        // Every third slot is used, names have different lengths
+        for (int id = 0; id < MAX_SECRETS; id += 3) {
+            int name_len = id % (NAME_LENGTH + 1);
+            byte[] apdu = new byte[5 + 2 + 7 + 1 + name_len + 1];
+            apdu[1] = 0x03;
+            apdu[4] = (byte)(apdu.length - 5);
+            apdu[5] = (byte)(id >> 8);
+            apdu[6] = (byte)id;
+            apdu[7] = 6;
+            for (int i = 0; i < 6; i++)
+                apdu[8 + i] = 'S';
+            apdu[14] = (byte)name_len;
+            for (int i = 0; i < name_len; i++)
+                apdu[15 + i] = (byte)('A' + i);
+            apdu[15 + name_len] = (byte)(1 + id % 3);
+            resp = sim.transmitCommand(apdu);
+            assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+        }
+    }
+
+    private byte[] status(int id) {
+        byte[] apdu = {(byte)0x00, 0x02, 0x00, 0x00, 2, (byte)(id >> 8), (byte)id};
+        return sim.transmitCommand(apdu);
+    }
+
+    private byte[] list(byte p1, int first) {
+        byte[] apdu = {(byte)0x00, 0x0D, p1, 0x00, 2, (byte)(first >> 8), (byte)first};
+        return sim.transmitCommand(apdu);
+    }
+
+    // Statuses of all secrets in the same form as LIST_SECRETS, from GET_SECRET_STATUS
+    private byte[] expectedListing(boolean used_only) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int id = 0; id < MAX_SECRETS; id++) {
+            byte[] resp = status(id);
+            if (used_only && resp[0] == 0)
+                continue;
+            out.write(id >> 8);
+            out.write(id);
+            out.write(resp, 0, resp.length - 2);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] listAll(byte p1, int[] apdus) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int next = 0;
+        while (next != 0xFFFF) {
+            byte[] resp = list(p1, next);
+            apdus[0]++;
+            assertTrue(resp.length <= 258);
+            assertEquals((byte)0x90, resp[resp.length - 2]);
+            assertEquals((byte)0x00, resp[resp.length - 1]);
+            next = ((resp[0] & 0xFF) << 8) | (resp[1] & 0xFF);
+            out.write(resp, 2, resp.length - 4);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void allSlots() {
+        int[] apdus = {0};
+        assertArrayEquals(expectedListing(false), listAll((byte)0, apdus));
+        assertTrue(apdus[0] > 1);
+        assertTrue(apdus[0] < MAX_SECRETS);
+    }
+
+    @Test
+    public void usedOnly() {
+        int[] apdus = {0};
+        assertArrayEquals(expectedListing(true), listAll((byte)1, apdus));
+        System.out.println("LIST_SECRETS: " + apdus[0] + " APDUs instead of " + MAX_SECRETS);
+    }
+
+    @Test
+    public void continuation() {
+        byte[] resp = list((byte)1, 61);
+        assertArrayEquals(new byte[]{(byte)0xFF, (byte)0xFF, 0, 63, 1, 12, 'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 1,
+                                     (byte)0x90, (byte)0x00}, resp);
+
+        // Listing from the end is empty
+        resp = list((byte)0, MAX_SECRETS);
+        assertArrayEquals(new byte[]{(byte)0xFF, (byte)0xFF, (byte)0x90, (byte)0x00}, resp);
+
+        resp = list((byte)0, MAX_SECRETS + 1);
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x84}, resp);
+    }
+}
@@ -23,8 +23,8 @@ public class OTPCard_manyHMAC_Test {
                          (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
                          0x01, // CI len
                          0x00, // CI data
-                         0x08,  // AD len
-                         0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
                         };
         sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
         sim.selectApplet(appletAID);
@@ -35,21 +35,22 @@ public class OTPCard_manyHMAC_Test {
         // Send APDU
         byte[] apdu = {(byte)0x00, 0x08, 0x00, 0x00, 5, 0x00, 0x00, 0x00, 0x00, 0x00};
         byte[] resp = sim.transmitCommand(apdu);
-        assertArrayEquals(new byte[]{(byte)0x08,
+        assertArrayEquals(new byte[]{0x00, 0x08,
                                      (byte)0x08,
                                      64,
                                      1, // SHA-1
-                                     0, // SHA-256
-                                     0, // SHA-512
+                                     1, // SHA-256
+                                     1, // SHA-512
                                      0x21, 0x22, 0x23, 0x24,
+                                     0x02, 0x40, // free bytes
                                      (byte)0x90, 0x00}, resp);
 
         byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
         resp = sim.transmitCommand(apdu_pin);
         assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
 
-        byte[] apdu2 = {(byte)0x00, 0x03, 0x00, 0x00, 18,
-                        0,
+        byte[] apdu2 = {(byte)0x00, 0x03, 0x00, 0x00, 19,
+                        0, 0,
                         10, 'S', 'E', 'C', 'R', 'E', 'T', 'A', 'B', 'C', 'D',
                         4, 'N', 'A', 'M', 'E',
                         1};
@@ -58,8 +59,8 @@ public class OTPCard_manyHMAC_Test {
 
         for (int i = 0; i < 1000000; i++) {
             
-            byte[] apdu3 = {(byte)0x00, 0x02, 0x00, 0x00, 1,
-                            0};
+            byte[] apdu3 = {(byte)0x00, 0x02, 0x00, 0x00, 2,
+                            0, 0};
             resp = sim.transmitCommand(apdu3);
             assertArrayEquals(new byte[]{0x01, 0x04, 'N', 'A', 'M', 'E', 0x01, (byte)0x90, (byte)0x00}, resp);
 
@@ -68,8 +69,8 @@ public class OTPCard_manyHMAC_Test {
             for (int j = 0; j < 8; j++) {
                 ch[j] = (byte)((challenge >> (8*j)) & 0xFF);
             }
-            byte[] apdu4 = {(byte)0x00, 0x01, 0x00, 0x00, 10,
-                            0,
+            byte[] apdu4 = {(byte)0x00, 0x01, 0x00, 0x00, 11,
+                            0, 0,
                             8, ch[0], ch[1], ch[2], ch[3], ch[4], ch[5], ch[6], ch[7]};
                 
             resp = sim.transmitCommand(apdu4);
@@ -0,0 +1,246 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.base.SimulatorRuntime;
+import com.licel.jcardsim.base.TransientMemory;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+public class OTPCard_memory_Test {
+
+    // jcardsim does not track free memory, so count transient allocations here
+    private static class CountingTransientMemory extends TransientMemory {
+        int allocated = 0;
+
+        @Override
+        public byte[] makeByteArray(int length, byte event) {
+            allocated += length;
+            return super.makeByteArray(length, event);
+        }
+
+        @Override
+        public short[] makeShortArray(short length, byte event) {
+            allocated += 2 * length;
+            return super.makeShortArray(length, event);
+        }
+
+        @Override
+        public boolean[] makeBooleanArray(short length, byte event) {
+            allocated += length;
+            return super.makeBooleanArray(length, event);
+        }
+
+        @Override
+        public Object[] makeObjectArray(short length, byte event) {
+            allocated += 2 * length;
+            return super.makeObjectArray(length, event);
+        }
+    }
+
+    // Gives installed applet to test, so objects created by it can be found
+    private static class AppletRuntime extends SimulatorRuntime {
+        AppletRuntime(TransientMemory memory) {
+            super(memory);
+        }
+
+        Applet applet(AID aid) {
+            return getApplet(aid);
+        }
+    }
+
+    // Finds objects created by applet between begin and commit of transaction
+    private static class TransactionRuntime extends AppletRuntime {
+        Set<Object> begin;
+        int transactions = 0;
+        int created = 0;
+
+        TransactionRuntime(TransientMemory memory) {
+            super(memory);
+        }
+
+        @Override
+        public void beginTransaction() {
+            begin = snapshot();
+            super.beginTransaction();
+        }
+
+        @Override
+        public void commitTransaction() {
+            Set<Object> commit = snapshot();
+            commit.removeAll(begin);
+            created += commit.size();
+            transactions++;
+            super.commitTransaction();
+        }
+
+        private Set<Object> snapshot() {
+            try {
+                return objects(applet(appletAID));
+            } catch (IllegalAccessException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static final AID appletAID = AIDUtil.create("A000000002020101");
+
+    // Objects referenced by applet and by its records, counters and arrays of them,
+    // so digests, signatures, keys and persistent arrays created by APDU are found
+    private static Set<Object> objects(Object object) throws IllegalAccessException {
+        Set<Object> found = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        collect(object, found);
+        return found;
+    }
+
+    private static void collect(Object object, Set<Object> found) throws IllegalAccessException {
+        if (object == null || !found.add(object))
+            return;
+        if (object instanceof Object[]) {
+            for (Object element : (Object[]) object)
+                collect(element, found);
+            return;
+        }
+        if (!object.getClass().getName().startsWith(OTPCard.class.getName()))
+            return;
+        for (Class<?> cls = object.getClass(); cls != Applet.class && cls != Object.class; cls = cls.getSuperclass()) {
+            for (Field field : cls.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive())
+                    continue;
+                field.setAccessible(true);
+                collect(field.get(object), found);
+            }
+        }
+    }
+
+    private Simulator install(SimulatorRuntime runtime, short maxSecrets) {
+        Simulator sim = new Simulator(runtime);
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         (byte)(maxSecrets >> 8), (byte)maxSecrets, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+        return sim;
+    }
+
+    @Test
+    public void transientMemoryDoesNotDependOnSlots() {
+        short[] slots = {1, 8, 64, 127, 512};
+        int expected = -1;
+
+        for (short maxSecrets : slots) {
+            CountingTransientMemory memory = new CountingTransientMemory();
+            Simulator sim = install(new SimulatorRuntime(memory), maxSecrets);
+
+            byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+            byte[] resp = sim.transmitCommand(apdu_pin);
+            assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+            // Use the last slot, so all records share the same scratch
+            byte last_hi = (byte)((maxSecrets - 1) >> 8);
+            byte last_lo = (byte)(maxSecrets - 1);
+            byte[] apdu_store = {(byte)0x00, 0x03, 0x00, 0x00, 15, last_hi, last_lo, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+            resp = sim.transmitCommand(apdu_store);
+            assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+            byte[] apdu_hmac = {(byte)0x00, 0x01, 0x00, 0x00, 12, last_hi, last_lo, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+            resp = sim.transmitCommand(apdu_hmac);
+            assertEquals(22, resp.length);
+            assertEquals((byte)0x51, resp[0]);
+
+            // At least the HMAC scratch is allocated
+            assertTrue(memory.allocated >= 64);
+            if (expected < 0)
+                expected = memory.allocated;
+            assertEquals(expected, memory.allocated);
+        }
+    }
+
+    @Test
+    public void rewriteSlotKeepsPersistentMemory() throws Exception {
+        AppletRuntime runtime = new AppletRuntime(new CountingTransientMemory());
+        Simulator sim = install(runtime, (short)8);
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        byte[] resp = sim.transmitCommand(apdu_pin);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+        byte[] apdu_store1 = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 0, 6, 'O', 'T', 'H', 'E', 'R', 'S', 4, 'M', 'A', 'M', 'E', 1};
+        byte[] apdu_store2 = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+        resp = sim.transmitCommand(apdu_store2);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+        // jcardsim doesn't track free persistent memory, so objects of applet are compared instead:
+        // digest, signature, key or array created by rewrite would be found as a new object
+        Set<Object> before = objects(runtime.applet(appletAID));
+        for (int i = 0; i < 5000; i++) {
+            resp = sim.transmitCommand(apdu_store1);
+            assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+            resp = sim.transmitCommand(apdu_store2);
+            assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+        }
+        Set<Object> after = objects(runtime.applet(appletAID));
+        assertEquals(before.size(), after.size());
+        assertTrue(after.containsAll(before));
+
+        byte[] apdu_hmac = {(byte)0x00, 0x01, 0x00, 0x00, 12, 0, 0, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+        resp = sim.transmitCommand(apdu_hmac);
+        assertArrayEquals(new byte[]{(byte)0x51, (byte)0xF8, (byte)0x9F, (byte)0x78, (byte)0xDA,
+                                     (byte)0x44, (byte)0x4A, (byte)0xA4, (byte)0x10, (byte)0x40,
+                                     (byte)0x4C, (byte)0xF7, (byte)0xC0, (byte)0x27, (byte)0x6A,
+                                     (byte)0x71, (byte)0x40, (byte)0xC6, (byte)0xF0, (byte)0xBD,
+                                     (byte)0x90, (byte)0x00}, resp);
+    }
+
+    @Test
+    public void saveSecretsCreatesCountersOutsideTransaction() throws Exception {
+        TransactionRuntime runtime = new TransactionRuntime(new CountingTransientMemory());
+        Simulator sim = install(runtime, (short)8);
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        byte[] resp = sim.transmitCommand(apdu_pin);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+        // HOTP record needs counter and TOTP record needs T0, both are created by SAVE_SECRETS
+        byte[] hotp = {0, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'H', 'O', 'T', 'P', 1,
+                       10, 1, 6, 0, 0, 0, 0, 0, 0, 0, 5};
+        byte[] totp = {0, 1, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'T', 'O', 'T', 'P', 1,
+                       12, 2, 6, 0, 30, 0, 0, 0, 0, 0, 0, 0, 0};
+        byte[] apdu_save = new byte[5 + 1 + hotp.length + 1 + totp.length];
+        apdu_save[1] = 0x0E;
+        apdu_save[4] = (byte)(apdu_save.length - 5);
+        apdu_save[5] = (byte)hotp.length;
+        System.arraycopy(hotp, 0, apdu_save, 6, hotp.length);
+        apdu_save[6 + hotp.length] = (byte)totp.length;
+        System.arraycopy(totp, 0, apdu_save, 7 + hotp.length, totp.length);
+
+        Set<Object> before = objects(runtime.applet(appletAID));
+        runtime.transactions = 0;
+        resp = sim.transmitCommand(apdu_save);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+        Set<Object> after = objects(runtime.applet(appletAID));
+
+        // Objects are created, but none of them inside transaction, which would leak them on abort
+        assertTrue(after.size() > before.size());
+        assertTrue(runtime.transactions > 0);
+        assertEquals(0, runtime.created);
+
+        byte[] apdu_hotp = {(byte)0x00, 0x0A, 0x00, 0x00, 2, 0, 0};
+        resp = sim.transmitCommand(apdu_hotp);
+        assertEquals((byte)0x90, resp[resp.length - 2]);
+    }
+}
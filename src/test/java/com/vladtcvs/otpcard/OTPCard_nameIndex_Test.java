@@ -0,0 +1,229 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+public class OTPCard_nameIndex_Test {
+    private static final byte[] OK = {(byte)0x90, (byte)0x00};
+    private static final byte[] NOT_FOUND = {(byte)0x6A, (byte)0x83};
+    private static final byte[] CHALLENGE = {'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+
+    private Simulator sim;
+
+    private void setup(int maxSecrets) {
+        sim = new Simulator();
+        // Install and select
+        AID appletAID = AIDUtil.create("A000000002020101");
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         (byte)(maxSecrets >> 8), (byte)maxSecrets, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        byte[] resp = sim.transmitCommand(apdu_pin);
+        assertArrayEquals(OK, resp);
+    }
+
+    // Secret depends on id, so HMAC shows which secret is used
+    private byte[] store(int id, String name) {
+        byte[] apdu = new byte[5 + 2 + 3 + 1 + name.length() + 1];
+        apdu[1] = 0x03;
+        apdu[4] = (byte)(apdu.length - 5);
+        apdu[5] = (byte)(id >> 8);
+        apdu[6] = (byte)id;
+        apdu[7] = 2;
+        apdu[8] = 'S';
+        apdu[9] = (byte)id;
+        apdu[10] = (byte)name.length();
+        for (int i = 0; i < name.length(); i++)
+            apdu[11 + i] = (byte)name.charAt(i);
+        apdu[11 + name.length()] = 1;
+        return sim.transmitCommand(apdu);
+    }
+
+    private byte[] delete(int id) {
+        byte[] apdu = {(byte)0x00, 0x04, 0x00, 0x00, 2, (byte)(id >> 8), (byte)id};
+        return sim.transmitCommand(apdu);
+    }
+
+    private byte[] hmacById(int id) {
+        byte[] apdu = new byte[5 + 3 + CHALLENGE.length];
+        apdu[1] = 0x01;
+        apdu[4] = (byte)(apdu.length - 5);
+        apdu[5] = (byte)(id >> 8);
+        apdu[6] = (byte)id;
+        apdu[7] = (byte)CHALLENGE.length;
+        System.arraycopy(CHALLENGE, 0, apdu, 8, CHALLENGE.length);
+        return sim.transmitCommand(apdu);
+    }
+
+    private byte[] hmacByName(String name) {
+        byte[] apdu = new byte[5 + 1 + name.length() + 1 + CHALLENGE.length];
+        apdu[1] = 0x01;
+        apdu[2] = (byte)0x80;
+        apdu[4] = (byte)(apdu.length - 5);
+        apdu[5] = (byte)name.length();
+        for (int i = 0; i < name.length(); i++)
+            apdu[6 + i] = (byte)name.charAt(i);
+        apdu[6 + name.length()] = (byte)CHALLENGE.length;
+        System.arraycopy(CHALLENGE, 0, apdu, 7 + name.length(), CHALLENGE.length);
+        return sim.transmitCommand(apdu);
+    }
+
+    // Same hash as the card uses, to find names which collide
+    private static int bucket(String name, int size) {
+        short hash = 0;
+        for (int i = 0; i < name.length(); i++)
+            hash = (short)(hash * 31 + (name.charAt(i) & 0xFF));
+        return (short)(hash ^ (hash >> 7)) & (size - 1);
+    }
+
+    @Test
+    public void manySlots() {
+        final int slots = 300;
+        setup(slots);
+        for (int id = 0; id < slots; id++)
+            assertArrayEquals(OK, store(id, "KEY" + id));
+        for (int id = 0; id < slots; id++)
+            assertArrayEquals(hmacById(id), hmacByName("KEY" + id));
+        assertArrayEquals(NOT_FOUND, hmacByName("KEY" + slots));
+        assertArrayEquals(NOT_FOUND, hmacByName("KEY"));
+    }
+
+    @Test
+    public void collisions() {
+        final int slots = 16;
+        final int size = 32;
+        setup(slots);
+
+        // Names with the same bucket, and one in the next bucket
+        String[] names = new String[6];
+        int found = 0;
+        for (int i = 0; found < 5; i++) {
+            String name = "N" + i;
+            if (bucket(name, size) == 7)
+                names[found++] = name;
+        }
+        for (int i = 0; found < 6; i++) {
+            String name = "M" + i;
+            if (bucket(name, size) == 8)
+                names[found++] = name;
+        }
+
+        for (int id = 0; id < names.length; id++)
+            assertArrayEquals(OK, store(id, names[id]));
+        for (int id = 0; id < names.length; id++)
+            assertArrayEquals(hmacById(id), hmacByName(names[id]));
+
+        // Removing entry from the middle of chain keeps following entries reachable
+        assertArrayEquals(OK, delete(1));
+        assertArrayEquals(NOT_FOUND, hmacByName(names[1]));
+        for (int id = 0; id < names.length; id++) {
+            if (id != 1)
+                assertArrayEquals(hmacById(id), hmacByName(names[id]));
+        }
+
+        // Rename
+        assertArrayEquals(OK, store(3, names[1]));
+        assertArrayEquals(NOT_FOUND, hmacByName(names[3]));
+        assertArrayEquals(hmacById(3), hmacByName(names[1]));
+        assertArrayEquals(hmacById(5), hmacByName(names[5]));
+    }
+
+    @Test
+    public void sameName() {
+        setup(8);
+        assertArrayEquals(OK, store(5, "NAME"));
+        assertArrayEquals(OK, store(2, "NAME"));
+        assertArrayEquals(OK, store(6, "NAME"));
+        assertArrayEquals(hmacById(2), hmacByName("NAME"));
+        assertArrayEquals(OK, delete(2));
+        assertArrayEquals(hmacById(5), hmacByName("NAME"));
+    }
+
+    @Test
+    public void otherInstructions() {
+        setup(8);
+        byte[] apdu_store = {(byte)0x00, 0x03, 0x00, 0x00, 39, 0, 3, 20,
+                             '1', '2', '3', '4', '5', '6', '7', '8', '9', '0',
+                             '1', '2', '3', '4', '5', '6', '7', '8', '9', '0',
+                             3, 'O', 'T', 'P', 1, 10, 1, 6, 0, 0, 0, 0, 0, 0, 0, 0};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_store));
+
+        byte[] apdu_hotp = {(byte)0x00, 0x0A, (byte)0x80, 0x00, 4, 3, 'O', 'T', 'P'};
+        assertArrayEquals(new byte[]{'7', '5', '5', '2', '2', '4', (byte)0x90, (byte)0x00}, sim.transmitCommand(apdu_hotp));
+
+        byte[] apdu_verify = {(byte)0x00, 0x0C, (byte)0x80, 0x00, 11, 3, 'O', 'T', 'P', 3, '9', '6', '9', '4', '2', '9'};
+        assertArrayEquals(new byte[]{2, (byte)0x90, (byte)0x00}, sim.transmitCommand(apdu_verify));
+
+        assertArrayEquals(OK, store(1, "B"));
+        byte[] apdu_batch = {(byte)0x00, 0x09, (byte)0x80, 0x00, 12,
+                             1, 'B', 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+        assertArrayEquals(hmacById(1), sim.transmitCommand(apdu_batch));
+    }
+
+    @Test
+    public void randomUpdates() {
+        final int slots = 32;
+        final String[] pool = new String[12];
+        for (int i = 0; i < pool.length; i++)
+            pool[i] = "K" + (i * 7);
+        setup(slots);
+
+        Random random = new Random(12345);
+        String[] model = new String[slots];
+        for (int op = 0; op < 300; op++) {
+            int id = random.nextInt(slots);
+            if (random.nextInt(3) == 0) {
+                assertArrayEquals(OK, delete(id));
+                model[id] = null;
+            } else {
+                String name = pool[random.nextInt(pool.length)];
+                assertArrayEquals(OK, store(id, name));
+                model[id] = name;
+            }
+
+            for (String name : pool) {
+                int expected = -1;
+                for (int i = 0; i < slots && expected < 0; i++) {
+                    if (name.equals(model[i]))
+                        expected = i;
+                }
+                byte[] resp = hmacByName(name);
+                if (expected < 0)
+                    assertArrayEquals(NOT_FOUND, resp);
+                else
+                    assertArrayEquals(hmacById(expected), resp);
+            }
+        }
+    }
+
+    @Test
+    public void maxSecrets() {
+        setup(1024);
+        assertArrayEquals(OK, store(1023, "LAST"));
+        assertArrayEquals(hmacById(1023), hmacByName("LAST"));
+
+        boolean rejected = false;
+        try {
+            setup(1025);
+        } catch (RuntimeException e) {
+            rejected = true;
+        }
+        assertTrue(rejected);
+    }
+}
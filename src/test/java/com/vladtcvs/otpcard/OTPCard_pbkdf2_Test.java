@@ -0,0 +1,185 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.Arrays;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+public class OTPCard_pbkdf2_Test {
+    private static final byte[] OK = {(byte)0x90, (byte)0x00};
+    private static final byte[] NOT_SATISFIED = {(byte)0x69, (byte)0x85};
+    private static final byte[] WRONG_LENGTH = {(byte)0x67, (byte)0x00};
+    private static final byte[] SALT = {'S', 'A', 'L', 'T', 1, 2, 3, 4};
+    private static final String[] ALGORITHMS = {"PBKDF2WithHmacSHA1", "PBKDF2WithHmacSHA256", "PBKDF2WithHmacSHA512"};
+
+    private Simulator sim;
+    private int apdus;
+
+    @BeforeEach
+    void setup() {
+        sim = new Simulator();
+        // Install and select
+        AID appletAID = AIDUtil.create("A000000002020101");
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_pin));
+
+        // Slots 0..2 use HMAC signature of the card, slots 3..5 use digest
+        for (int id = 0; id < 6; id++) {
+            byte[] apdu = {(byte)0x00, 0x03, (byte)(id < 3 ? 0 : 1), 0x00, 15, 0, (byte)id,
+                           6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', (byte)(1 + id % 3)};
+            assertArrayEquals(OK, sim.transmitCommand(apdu));
+        }
+    }
+
+    private static byte[] startAPDU(int id, byte[] salt, int iterations, int key_len, int chunk) {
+        byte[] apdu = new byte[5 + 2 + 1 + salt.length + 7];
+        apdu[1] = 0x10;
+        apdu[4] = (byte)(apdu.length - 5);
+        apdu[5] = (byte)(id >> 8);
+        apdu[6] = (byte)id;
+        apdu[7] = (byte)salt.length;
+        System.arraycopy(salt, 0, apdu, 8, salt.length);
+        int pos = 8 + salt.length;
+        apdu[pos++] = (byte)(iterations >> 24);
+        apdu[pos++] = (byte)(iterations >> 16);
+        apdu[pos++] = (byte)(iterations >> 8);
+        apdu[pos++] = (byte)iterations;
+        apdu[pos++] = (byte)key_len;
+        apdu[pos++] = (byte)(chunk >> 8);
+        apdu[pos] = (byte)chunk;
+        return apdu;
+    }
+
+    private byte[] proceed() {
+        apdus++;
+        byte[] apdu = {(byte)0x00, 0x10, 0x00, 0x01, 0x00};
+        return sim.transmitCommand(apdu);
+    }
+
+    private byte[] derive(int id, byte[] salt, int iterations, int key_len, int chunk) {
+        apdus = 1;
+        byte[] resp = sim.transmitCommand(startAPDU(id, salt, iterations, key_len, chunk));
+        while (Arrays.equals(OK, resp))
+            resp = proceed();
+        return resp;
+    }
+
+    private static byte[] expected(int id, byte[] salt, int iterations, int key_len) throws Exception {
+        SecretKeyFactory factory = SecretKeyFactory.getInstance(ALGORITHMS[id % 3]);
+        PBEKeySpec spec = new PBEKeySpec("SECRET".toCharArray(), salt, iterations, key_len * 8);
+        byte[] key = factory.generateSecret(spec).getEncoded();
+        byte[] resp = Arrays.copyOf(key, key.length + 2);
+        resp[key.length] = (byte)0x90;
+        resp[key.length + 1] = 0x00;
+        return resp;
+    }
+
+    @Test
+    public void keys() throws Exception {
+        for (int id = 0; id < 6; id++) {
+            assertArrayEquals(expected(id, SALT, 1, 16), derive(id, SALT, 1, 16, 1));
+            assertArrayEquals(expected(id, SALT, 1000, 32), derive(id, SALT, 1000, 32, 1000));
+            assertArrayEquals(expected(id, SALT, 1000, 32), derive(id, SALT, 1000, 32, 1001));
+            assertArrayEquals(expected(id, SALT, 1000, 32), derive(id, SALT, 1000, 32, 333));
+            assertArrayEquals(expected(id, new byte[]{0}, 10, 1), derive(id, new byte[]{0}, 10, 1, 3));
+        }
+    }
+
+    @Test
+    public void severalBlocks() throws Exception {
+        for (int id = 0; id < 6; id++) {
+            assertArrayEquals(expected(id, SALT, 50, 100), derive(id, SALT, 50, 100, 7));
+            assertArrayEquals(expected(id, SALT, 50, 128), derive(id, SALT, 50, 128, 7));
+        }
+        byte[] salt = new byte[64];
+        assertArrayEquals(expected(3, salt, 20, 128), derive(3, salt, 20, 128, 20));
+    }
+
+    @Test
+    public void longCount() throws Exception {
+        final int iterations = 70000;
+        final int chunk = 5000;
+        for (int id : new int[]{0, 3}) {
+            long start = System.nanoTime();
+            assertArrayEquals(expected(id, SALT, iterations, 20), derive(id, SALT, iterations, 20, chunk));
+            long ms = (System.nanoTime() - start) / 1000000;
+            System.out.println("PBKDF2 " + iterations + " iterations, " + chunk + " per APDU: " + apdus + " APDUs, " + ms + " ms");
+        }
+    }
+
+    @Test
+    public void byName() throws Exception {
+        byte[] apdu = startAPDU(0, SALT, 100, 20, 100);
+        byte[] by_name = new byte[apdu.length + 3];
+        System.arraycopy(apdu, 0, by_name, 0, 5);
+        by_name[2] = (byte)0x80;
+        by_name[4] = (byte)(apdu[4] + 3);
+        by_name[5] = 4;
+        by_name[6] = 'N';
+        by_name[7] = 'A';
+        by_name[8] = 'M';
+        by_name[9] = 'E';
+        System.arraycopy(apdu, 7, by_name, 10, apdu.length - 7);
+        assertArrayEquals(expected(0, SALT, 100, 20), sim.transmitCommand(by_name));
+    }
+
+    @Test
+    public void session() {
+        // No session
+        assertArrayEquals(NOT_SATISFIED, proceed());
+        derive(0, SALT, 10, 20, 10);
+        assertArrayEquals(NOT_SATISFIED, proceed());
+
+        // Changed secret ends session
+        assertArrayEquals(OK, sim.transmitCommand(startAPDU(3, SALT, 10, 20, 5)));
+        byte[] apdu_store = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 3, 6, 'O', 'T', 'H', 'E', 'R', 'S', 4, 'N', 'A', 'M', 'E', 1};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_store));
+        assertArrayEquals(NOT_SATISFIED, proceed());
+
+        // Restart drops previous session
+        assertArrayEquals(OK, sim.transmitCommand(startAPDU(0, SALT, 10, 20, 5)));
+        assertArrayEquals(WRONG_LENGTH, sim.transmitCommand(startAPDU(0, SALT, 10, 0, 5)));
+        assertArrayEquals(NOT_SATISFIED, proceed());
+    }
+
+    @Test
+    public void wrongArguments() {
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x83}, sim.transmitCommand(startAPDU(7, SALT, 10, 20, 5)));
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x84}, sim.transmitCommand(startAPDU(0, SALT, 0, 20, 5)));
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x84}, sim.transmitCommand(startAPDU(0, SALT, 10, 20, 0)));
+        assertArrayEquals(WRONG_LENGTH, sim.transmitCommand(startAPDU(0, SALT, 10, 129, 5)));
+        assertArrayEquals(WRONG_LENGTH, sim.transmitCommand(startAPDU(2, SALT, 10, 129, 5)));
+        assertArrayEquals(WRONG_LENGTH, sim.transmitCommand(startAPDU(0, new byte[65], 10, 20, 5)));
+        byte[] apdu = startAPDU(0, SALT, 10, 20, 5);
+        apdu[4]--;
+        assertArrayEquals(WRONG_LENGTH, sim.transmitCommand(Arrays.copyOf(apdu, apdu.length - 1)));
+        byte[] apdu_step = {(byte)0x00, 0x10, 0x00, 0x02, 0x00};
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x86}, sim.transmitCommand(apdu_step));
+
+        // Only HMAC secrets
+        byte[] apdu_store = {(byte)0x00, 0x03, 0x00, 0x00, 26, 0, 6, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'H', 'O', 'T', 'P', 1,
+                             10, 1, 6, 0, 0, 0, 0, 0, 0, 0, 0};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_store));
+        assertArrayEquals(NOT_SATISFIED, sim.transmitCommand(startAPDU(6, SALT, 10, 20, 5)));
+    }
+}
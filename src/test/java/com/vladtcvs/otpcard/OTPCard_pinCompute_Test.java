@@ -0,0 +1,127 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+public class OTPCard_pinCompute_Test {
+    private static final byte[] HMAC_RESULT = {(byte)0x51, (byte)0xF8, (byte)0x9F, (byte)0x78, (byte)0xDA,
+                                               (byte)0x44, (byte)0x4A, (byte)0xA4, (byte)0x10, (byte)0x40,
+                                               (byte)0x4C, (byte)0xF7, (byte)0xC0, (byte)0x27, (byte)0x6A,
+                                               (byte)0x71, (byte)0x40, (byte)0xC6, (byte)0xF0, (byte)0xBD,
+                                               (byte)0x90, (byte)0x00};
+
+    private Simulator sim;
+    private AID appletAID;
+
+    @BeforeEach
+    void setup() {
+        sim = new Simulator();
+        // Install and select
+        appletAID = AIDUtil.create("A000000002020101");
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        byte[] resp = sim.transmitCommand(apdu_pin);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+        byte[] apdu_hmac = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+        resp = sim.transmitCommand(apdu_hmac);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+        // RFC 4226 secret, HOTP with counter 0
+        byte[] apdu_hotp = {(byte)0x00, 0x03, 0x00, 0x00, 40, 0, 1, 20,
+                            '1', '2', '3', '4', '5', '6', '7', '8', '9', '0',
+                            '1', '2', '3', '4', '5', '6', '7', '8', '9', '0',
+                            4, 'H', 'O', 'T', 'P', 1, 10, 1, 6, 0, 0, 0, 0, 0, 0, 0, 0};
+        resp = sim.transmitCommand(apdu_hotp);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+        // RFC 6238 secret, TOTP with 30 seconds step
+        byte[] apdu_totp = {(byte)0x00, 0x03, 0x00, 0x00, 42, 0, 2, 20,
+                            '1', '2', '3', '4', '5', '6', '7', '8', '9', '0',
+                            '1', '2', '3', '4', '5', '6', '7', '8', '9', '0',
+                            4, 'T', 'O', 'T', 'P', 1, 12, 2, 8, 0, 30, 0, 0, 0, 0, 0, 0, 0, 0};
+        resp = sim.transmitCommand(apdu_totp);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+        // Start new session, PIN is not verified
+        sim.reset();
+        sim.selectApplet(appletAID);
+        byte[] apdu_check = {(byte)0x00, 0x01, 0x00, 0x00, 12, 0, 0, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+        resp = sim.transmitCommand(apdu_check);
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x82}, resp);
+    }
+
+    @Test
+    public void pinOnly() {
+        byte[] apdu = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, sim.transmitCommand(apdu));
+    }
+
+    @Test
+    public void hmac() {
+        byte[] apdu = {(byte)0x00, 0x42, 0x00, 0x00, 19, 6, '1', '2', '3', '4', '5', '6',
+                       0, 0, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+        assertArrayEquals(HMAC_RESULT, sim.transmitCommand(apdu));
+
+        // PIN stays verified for following commands
+        byte[] apdu_hmac = {(byte)0x00, 0x01, 0x00, 0x00, 12, 0, 0, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+        assertArrayEquals(HMAC_RESULT, sim.transmitCommand(apdu_hmac));
+    }
+
+    @Test
+    public void hmacByName() {
+        byte[] apdu = {(byte)0x00, 0x42, (byte)0x80, 0x00, 22, 6, '1', '2', '3', '4', '5', '6',
+                       4, 'N', 'A', 'M', 'E', 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+        assertArrayEquals(HMAC_RESULT, sim.transmitCommand(apdu));
+    }
+
+    @Test
+    public void hotp() {
+        byte[] apdu = {(byte)0x00, 0x42, 0x00, 0x00, 9, 6, '1', '2', '3', '4', '5', '6', 0, 1};
+        assertArrayEquals(new byte[]{'7', '5', '5', '2', '2', '4', (byte)0x90, (byte)0x00}, sim.transmitCommand(apdu));
+        assertArrayEquals(new byte[]{'2', '8', '7', '0', '8', '2', (byte)0x90, (byte)0x00}, sim.transmitCommand(apdu));
+    }
+
+    @Test
+    public void totp() {
+        byte[] apdu = {(byte)0x00, 0x42, 0x00, 0x00, 17, 6, '1', '2', '3', '4', '5', '6',
+                       0, 2, 0, 0, 0, 0, 0x49, (byte)0x96, 0x02, (byte)0xD2};
+        assertArrayEquals(new byte[]{'8', '9', '0', '0', '5', '9', '2', '4', (byte)0x90, (byte)0x00}, sim.transmitCommand(apdu));
+    }
+
+    @Test
+    public void wrongPin() {
+        // Wrong PIN uses the same try counter, nothing is computed
+        byte[] apdu_bad = {(byte)0x00, 0x42, 0x00, 0x00, 9, 6, '1', '2', '3', '4', '5', '5', 0, 1};
+        byte[] apdu_good = {(byte)0x00, 0x42, 0x00, 0x00, 9, 6, '1', '2', '3', '4', '5', '6', 0, 1};
+        for (int i = 0; i < 2; i++)
+            assertArrayEquals(new byte[]{(byte)0x69, (byte)0x82}, sim.transmitCommand(apdu_bad));
+        assertArrayEquals(new byte[]{'7', '5', '5', '2', '2', '4', (byte)0x90, (byte)0x00}, sim.transmitCommand(apdu_good));
+
+        for (int i = 0; i < 3; i++)
+            assertArrayEquals(new byte[]{(byte)0x69, (byte)0x82}, sim.transmitCommand(apdu_bad));
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x83}, sim.transmitCommand(apdu_good));
+    }
+
+    @Test
+    public void wrongSecret() {
+        byte[] apdu = {(byte)0x00, 0x42, 0x00, 0x00, 9, 6, '1', '2', '3', '4', '5', '6', 0, 5};
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x83}, sim.transmitCommand(apdu));
+    }
+}
@@ -0,0 +1,215 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.base.SimulatorRuntime;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+public class OTPCard_ringCounter_Test {
+    private static final int LENGTH = 8;
+    private static final int CELLS = 8;
+    private static final byte[] OK = {(byte)0x90, (byte)0x00};
+    private static final byte[] SECRET = {'S', 'E', 'C', 'R', 'E', 'T'};
+    private static final byte[] APDU_HOTP = {(byte)0x00, 0x0A, 0x00, 0x00, 2, 0, 0};
+
+    private static class AppletRuntime extends SimulatorRuntime {
+        Applet applet(AID aid) {
+            return getApplet(aid);
+        }
+    }
+
+    private static final AID appletAID = AIDUtil.create("A000000002020101");
+
+    private AppletRuntime runtime;
+    private Simulator sim;
+
+    @BeforeEach
+    void setup() {
+        runtime = new AppletRuntime();
+        sim = new Simulator(runtime);
+        // Install and select
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_pin));
+    }
+
+    // SAVE_NEW_SECRET of HOTP secret to slot 0, counter is written to the ring
+    private byte[] store(long counter) {
+        byte[] apdu = {(byte)0x00, 0x03, 0x00, 0x00, 26, 0, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'H', 'O', 'T', 'P', 1,
+                       10, 1, 6, 0, 0, 0, 0, 0, 0, 0, 0};
+        for (int i = 0; i < 8; i++)
+            apdu[apdu.length - 1 - i] = (byte)(counter >> (8 * i));
+        return sim.transmitCommand(apdu);
+    }
+
+    // Ring of counter of record in slot 0, changes of it are seen by applet
+    private byte[] cells() throws Exception {
+        Field field = OTPCard.class.getDeclaredField("otp_records");
+        field.setAccessible(true);
+        Object record = ((Object[]) field.get(runtime.applet(appletAID)))[0];
+        field = record.getClass().getDeclaredField("counter");
+        field.setAccessible(true);
+        Object counter = field.get(record);
+        field = counter.getClass().getDeclaredField("cells");
+        field.setAccessible(true);
+        return (byte[]) field.get(counter);
+    }
+
+    // HOTP response with 6 digits OTP for counter
+    private static byte[] hotp(long counter) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(SECRET, "HmacSHA1"));
+        byte[] hash = mac.doFinal(new byte[]{(byte)(counter >> 56), (byte)(counter >> 48), (byte)(counter >> 40),
+                                             (byte)(counter >> 32), (byte)(counter >> 24), (byte)(counter >> 16),
+                                             (byte)(counter >> 8), (byte) counter});
+        int off = hash[hash.length - 1] & 0x0F;
+        int code = ((hash[off] & 0x7F) << 24) | ((hash[off + 1] & 0xFF) << 16) |
+                   ((hash[off + 2] & 0xFF) << 8) | (hash[off + 3] & 0xFF);
+        byte[] otp = String.format("%06d", code % 1000000).getBytes();
+        otp = Arrays.copyOf(otp, otp.length + 2);
+        otp[otp.length - 2] = (byte)0x90;
+        return otp;
+    }
+
+    @Test
+    public void increments() throws Exception {
+        final int total = 40 * CELLS;
+        assertArrayEquals(OK, store(0));
+        byte[] cells = cells();
+        assertEquals(LENGTH * CELLS + CELLS, cells.length);
+        int[] byteWrites = new int[cells.length];
+        int[] cellWrites = new int[CELLS];
+
+        byte[] before = cells.clone();
+        for (int i = 0; i < total; i++) {
+            assertArrayEquals(hotp(i), sim.transmitCommand(APDU_HOTP));
+            for (int cell = 0; cell < CELLS; cell++) {
+                boolean written = false;
+                for (int j = cell * (LENGTH + 1); j < (cell + 1) * (LENGTH + 1); j++) {
+                    if (cells[j] != before[j]) {
+                        byteWrites[j]++;
+                        written = true;
+                    }
+                }
+                if (written)
+                    cellWrites[cell]++;
+            }
+            System.arraycopy(cells, 0, before, 0, cells.length);
+        }
+
+        // Plain counter would write its last byte on every HOTP
+        for (int cell = 0; cell < CELLS; cell++)
+            assertEquals(total / CELLS, cellWrites[cell]);
+        int maxWrites = 0;
+        for (int writes : byteWrites)
+            maxWrites = Math.max(maxWrites, writes);
+        assertEquals(total / CELLS, maxWrites);
+    }
+
+    @Test
+    public void tears() throws Exception {
+        Random random = new Random(4226);
+        assertArrayEquals(OK, store(0));
+        byte[] cells = cells();
+
+        // Enough HOTPs to wrap both cells and markers
+        for (int i = 0; i < 200; i++) {
+            byte[] before = cells.clone();
+            assertArrayEquals(hotp(i), sim.transmitCommand(APDU_HOTP));
+            byte[] after = cells.clone();
+
+            // Written cell is the one with changed marker
+            int cell = 0;
+            while (before[cell + LENGTH] == after[cell + LENGTH])
+                cell += LENGTH + 1;
+
+            // Marker is cleared, value is written byte by byte, marker is set
+            for (int written = -1; written <= LENGTH; written++) {
+                byte[] torn = before.clone();
+                torn[cell + LENGTH] = 0;
+                for (int j = 0; j < written; j++)
+                    torn[cell + j] = after[cell + j];
+                if (written >= 0 && written < LENGTH)
+                    torn[cell + written] = (byte) random.nextInt();
+
+                // Counter continues from old value, torn cell is written again
+                System.arraycopy(torn, 0, cells, 0, torn.length);
+                for (int j = 0; j <= 2 * CELLS; j++)
+                    assertArrayEquals(hotp(i + j), sim.transmitCommand(APDU_HOTP));
+            }
+            System.arraycopy(after, 0, cells, 0, after.length);
+        }
+    }
+
+    @Test
+    public void write() throws Exception {
+        // Counter is written by SAVE and by VERIFY_HOTP, and goes on from written value
+        for (int i = 0; i < 300; i++) {
+            long start = 0xFFFFFF00L + 1000 * i;
+            assertArrayEquals(OK, store(start));
+            assertArrayEquals(hotp(start), sim.transmitCommand(APDU_HOTP));
+
+            byte[] otp = hotp(start + 5);
+            byte[] apdu_verify = {(byte)0x00, 0x0C, 0x00, 0x00, 9, 0, 0, 9, otp[0], otp[1], otp[2], otp[3], otp[4], otp[5]};
+            assertArrayEquals(new byte[]{4, (byte)0x90, (byte)0x00}, sim.transmitCommand(apdu_verify));
+            assertArrayEquals(hotp(start + 6), sim.transmitCommand(APDU_HOTP));
+        }
+    }
+
+    @Test
+    public void hotp() throws Exception {
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        OTPCardCostModel card = new OTPCardCostModel(params);
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        assertArrayEquals(OK, card.transmit(apdu_pin));
+
+        // Counter starts below carry to the 5th byte
+        long start = 0xFFFFFF00L;
+        byte[] apdu_store = {(byte)0x00, 0x03, 0x00, 0x00, 26, 0, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'H', 'O', 'T', 'P', 1,
+                             10, 1, 6, 0, 0, 0, 0, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0};
+        assertArrayEquals(OK, card.transmit(apdu_store));
+
+        for (int i = 0; i < 1000; i++) {
+            assertArrayEquals(hotp(start + i), card.transmit(APDU_HOTP));
+            // Only one cell of the ring is written
+            assertEquals(0, card.last().transactions);
+            assertTrue(card.last().persistentBytes <= LENGTH + 1);
+        }
+
+        // Next OTP is accepted by VERIFY_HOTP, which writes counter to the ring too
+        byte[] otp = hotp(start + 1000);
+        byte[] apdu_verify = {(byte)0x00, 0x0C, 0x00, 0x00, 9, 0, 0, 0, otp[0], otp[1], otp[2], otp[3], otp[4], otp[5]};
+        assertArrayEquals(new byte[]{0, (byte)0x90, (byte)0x00}, card.transmit(apdu_verify));
+        assertArrayEquals(hotp(start + 1001), card.transmit(APDU_HOTP));
+    }
+}
@@ -23,8 +23,8 @@ public class OTPCard_secrets_Test {
                          (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
                          0x01, // CI len
                          0x00, // CI data
-                         0x08,  // AD len
-                         0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
                         };
         sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
         sim.selectApplet(appletAID);
@@ -37,7 +37,7 @@ public class OTPCard_secrets_Test {
         byte[] resp = sim.transmitCommand(apdu_pin);
         assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
 
-        byte[] apdu = {(byte)0x00, 0x03, 0x00, 0x00, 14, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+        byte[] apdu = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
         resp = sim.transmitCommand(apdu);
         assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
     }
@@ -48,15 +48,15 @@ public class OTPCard_secrets_Test {
         byte[] resp = sim.transmitCommand(apdu_pin);
         assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
 
-        byte[] apdu1 = {(byte)0x00, 0x03, 0x00, 0x00, 14, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+        byte[] apdu1 = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
         resp = sim.transmitCommand(apdu1);
         assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
 
-        byte[] apdu2 = {(byte)0x00, 0x04, 0x00, 0x00, 1, 0};
+        byte[] apdu2 = {(byte)0x00, 0x04, 0x00, 0x00, 2, 0, 0};
         resp = sim.transmitCommand(apdu2);
         assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
 
-        byte[] apdu3 = {(byte)0x00, 0x02, 0x00, 0x00, 1, 0};
+        byte[] apdu3 = {(byte)0x00, 0x02, 0x00, 0x00, 2, 0, 0};
         resp = sim.transmitCommand(apdu3);
         assertArrayEquals(new byte[]{0x00, 0x00, 0x00, (byte)0x90, (byte)0x00}, resp);
     }
@@ -67,11 +67,11 @@ public class OTPCard_secrets_Test {
         byte[] resp = sim.transmitCommand(apdu_pin);
         assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
 
-        byte[] apdu1 = {(byte)0x00, 0x03, 0x00, 0x00, 14, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+        byte[] apdu1 = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
         resp = sim.transmitCommand(apdu1);
         assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
 
-        byte[] apdu2 = {(byte)0x00, 0x02, 0x00, 0x00, 1, 0};
+        byte[] apdu2 = {(byte)0x00, 0x02, 0x00, 0x00, 2, 0, 0};
         resp = sim.transmitCommand(apdu2);
         assertArrayEquals(new byte[]{0x01, 0x04, 'N', 'A', 'M', 'E', 0x01, (byte)0x90, (byte)0x00}, resp);
     }
@@ -82,11 +82,11 @@ public class OTPCard_secrets_Test {
         byte[] resp = sim.transmitCommand(apdu_pin);
         assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
 
-        byte[] apdu1 = {(byte)0x00, 0x03, 0x00, 0x00, 14, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+        byte[] apdu1 = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
         resp = sim.transmitCommand(apdu1);
         assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
 
-        byte[] apdu2 = {(byte)0x00, 0x01, 0x00, 0x00, 11, 0, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+        byte[] apdu2 = {(byte)0x00, 0x01, 0x00, 0x00, 12, 0, 0, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
         resp = sim.transmitCommand(apdu2);
         assertArrayEquals(new byte[]{(byte)0x51, (byte)0xF8, (byte)0x9F, (byte)0x78, (byte)0xDA,
                                      (byte)0x44, (byte)0x4A, (byte)0xA4, (byte)0x10, (byte)0x40,
@@ -94,4 +94,33 @@ public class OTPCard_secrets_Test {
                                      (byte)0x71, (byte)0x40, (byte)0xC6, (byte)0xF0, (byte)0xBD,
                                      (byte)0x90, (byte)0x00}, resp);
     }
+
+    @Test
+    public void wrongId() {
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        byte[] resp = sim.transmitCommand(apdu_pin);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+
+        // Ids are 2 bytes, negative and too large ones are rejected
+        byte[] apdu1 = {(byte)0x00, 0x03, 0x00, 0x00, 15, (byte)0x80, 0, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+        resp = sim.transmitCommand(apdu1);
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x84}, resp);
+
+        byte[] apdu2 = {(byte)0x00, 0x02, 0x00, 0x00, 2, 0, 8};
+        resp = sim.transmitCommand(apdu2);
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x84}, resp);
+
+        byte[] apdu3 = {(byte)0x00, 0x04, 0x00, 0x00, 2, (byte)0xFF, (byte)0xFF};
+        resp = sim.transmitCommand(apdu3);
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x84}, resp);
+
+        byte[] apdu4 = {(byte)0x00, 0x01, 0x00, 0x00, 3, 1, 0, 0};
+        resp = sim.transmitCommand(apdu4);
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x84}, resp);
+
+        // Old 1 byte id is too short
+        byte[] apdu5 = {(byte)0x00, 0x04, 0x00, 0x00, 1, 0};
+        resp = sim.transmitCommand(apdu5);
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x84}, resp);
+    }
 }
@@ -0,0 +1,288 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.base.SimulatorRuntime;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+public class OTPCard_slab_Test {
+    private static final byte[] OK = {(byte)0x90, (byte)0x00};
+    private static final byte[] FULL = {(byte)0x6A, (byte)0x84};
+    private static final byte[] NOT_FOUND = {(byte)0x6A, (byte)0x83};
+    private static final byte[] CHALLENGE = {'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+
+    private static final AID appletAID = AIDUtil.create("A000000002020101");
+
+    // Power is lost before transaction number tear, counting from 0, nothing is lost if tear < 0
+    private static class TearRuntime extends SimulatorRuntime {
+        int tear = -1;
+
+        @Override
+        public void beginTransaction() {
+            if (tear >= 0 && tear-- == 0) {
+                tear = -1;
+                throw new RuntimeException("power lost");
+            }
+            super.beginTransaction();
+        }
+    }
+
+    private Simulator sim;
+
+    private void setup(int maxSecrets, int slabSize) {
+        setup(new SimulatorRuntime(), maxSecrets, slabSize);
+    }
+
+    private void setup(SimulatorRuntime runtime, int maxSecrets, int slabSize) {
+        sim = new Simulator(runtime);
+        // Install and select
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x0B,  // AD len
+                         (byte)(maxSecrets >> 8), (byte)maxSecrets, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24, // AD
+                         (byte)(slabSize >> 8), (byte)slabSize
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        select();
+    }
+
+    private void select() {
+        sim.selectApplet(appletAID);
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        byte[] resp = sim.transmitCommand(apdu_pin);
+        assertArrayEquals(OK, resp);
+    }
+
+    // Secret of secret_len bytes depends on id, name is "K" + id
+    private byte[] store(int id, int secret_len) {
+        String name = "K" + id;
+        byte[] apdu = new byte[5 + 2 + 1 + secret_len + 1 + name.length() + 1];
+        apdu[1] = 0x03;
+        apdu[4] = (byte)(apdu.length - 5);
+        apdu[5] = (byte)(id >> 8);
+        apdu[6] = (byte)id;
+        apdu[7] = (byte)secret_len;
+        for (int i = 0; i < secret_len; i++)
+            apdu[8 + i] = (byte)(id * 3 + i);
+        apdu[8 + secret_len] = (byte)name.length();
+        for (int i = 0; i < name.length(); i++)
+            apdu[9 + secret_len + i] = (byte)name.charAt(i);
+        apdu[9 + secret_len + name.length()] = 1;
+        return sim.transmitCommand(apdu);
+    }
+
+    private byte[] delete(int id) {
+        byte[] apdu = {(byte)0x00, 0x04, 0x00, 0x00, 2, (byte)(id >> 8), (byte)id};
+        return sim.transmitCommand(apdu);
+    }
+
+    private byte[] hmac(int id) {
+        byte[] apdu = new byte[5 + 3 + CHALLENGE.length];
+        apdu[1] = 0x01;
+        apdu[4] = (byte)(apdu.length - 5);
+        apdu[5] = (byte)(id >> 8);
+        apdu[6] = (byte)id;
+        apdu[7] = (byte)CHALLENGE.length;
+        System.arraycopy(CHALLENGE, 0, apdu, 8, CHALLENGE.length);
+        return sim.transmitCommand(apdu);
+    }
+
+    private byte[] hmacByName(int id) {
+        String name = "K" + id;
+        byte[] apdu = new byte[5 + 1 + name.length() + 1 + CHALLENGE.length];
+        apdu[1] = 0x01;
+        apdu[2] = (byte)0x80;
+        apdu[4] = (byte)(apdu.length - 5);
+        apdu[5] = (byte)name.length();
+        for (int i = 0; i < name.length(); i++)
+            apdu[6 + i] = (byte)name.charAt(i);
+        apdu[6 + name.length()] = (byte)CHALLENGE.length;
+        System.arraycopy(CHALLENGE, 0, apdu, 7 + name.length(), CHALLENGE.length);
+        return sim.transmitCommand(apdu);
+    }
+
+    private int freeBytes() {
+        byte[] apdu = {(byte)0x00, 0x08, 0x00, 0x00, 0x00};
+        byte[] resp = sim.transmitCommand(apdu);
+        assertEquals(15, resp.length);
+        return ((resp[11] & 0xFF) << 8) | (resp[12] & 0xFF);
+    }
+
+    @Test
+    public void shortSecrets() {
+        // 40 records of 16 bytes secret and up to 3 bytes name, no space for 64 bytes secrets
+        final int slots = 40;
+        setup(slots, 800);
+        assertEquals(800, freeBytes());
+        int used = 0;
+        for (int id = 0; id < slots; id++) {
+            assertArrayEquals(OK, store(id, 16));
+            used += 16 + ("K" + id).length();
+            assertEquals(800 - used, freeBytes());
+        }
+        for (int id = 0; id < slots; id++)
+            assertArrayEquals(hmac(id), hmacByName(id));
+    }
+
+    @Test
+    public void compaction() {
+        setup(8, 200);
+        for (int id = 0; id < 8; id++)
+            assertArrayEquals(OK, store(id, 20));
+        assertEquals(200 - 8 * 22, freeBytes());
+        byte[][] expected = new byte[8][];
+        for (int id = 0; id < 8; id++)
+            expected[id] = hmac(id);
+
+        // Holes in the middle are joined, other records are moved and keep their secrets
+        assertArrayEquals(OK, delete(1));
+        assertArrayEquals(OK, delete(4));
+        assertArrayEquals(OK, delete(6));
+        assertEquals(200 - 5 * 22, freeBytes());
+        assertArrayEquals(OK, store(4, 64));
+        assertArrayEquals(NOT_FOUND, hmac(1));
+        for (int id : new int[]{0, 2, 3, 5, 7}) {
+            assertArrayEquals(expected[id], hmac(id));
+            assertArrayEquals(expected[id], hmacByName(id));
+        }
+        assertArrayEquals(hmac(4), hmacByName(4));
+    }
+
+    @Test
+    public void tornCompaction() {
+        // Power is lost before every transaction of compacting SAVE in turn, until SAVE completes
+        int torn = 0;
+        for (int tear = 0; ; tear++) {
+            TearRuntime runtime = new TearRuntime();
+            setup(runtime, 8, 200);
+            for (int id = 0; id < 8; id++)
+                assertArrayEquals(OK, store(id, 20));
+            byte[][] expected = new byte[8][];
+            for (int id = 0; id < 8; id++)
+                expected[id] = hmac(id);
+            assertArrayEquals(OK, delete(1));
+            assertArrayEquals(OK, delete(4));
+            assertArrayEquals(OK, delete(6));
+
+            runtime.tear = tear;
+            byte[] resp = store(4, 64);
+            boolean completed = runtime.tear >= 0;
+            runtime.tear = -1;
+            if (!completed) {
+                assertFalse(Arrays.equals(OK, resp));
+                // Records moved before power loss are found, the rest are found at old place
+                sim.reset();
+                select();
+                torn++;
+                assertEquals(200 - 5 * 22, freeBytes());
+                assertArrayEquals(NOT_FOUND, hmac(4));
+                for (int id : new int[]{0, 2, 3, 5, 7}) {
+                    assertArrayEquals(expected[id], hmac(id));
+                    assertArrayEquals(expected[id], hmacByName(id));
+                }
+                // Next SAVE finishes compaction
+                assertArrayEquals(OK, store(4, 64));
+            } else {
+                assertArrayEquals(OK, resp);
+            }
+            assertEquals(200 - 5 * 22 - 66, freeBytes());
+            for (int id : new int[]{0, 2, 3, 5, 7}) {
+                assertArrayEquals(expected[id], hmac(id));
+                assertArrayEquals(expected[id], hmacByName(id));
+            }
+            assertArrayEquals(hmac(4), hmacByName(4));
+            if (completed)
+                break;
+        }
+        // Every record is moved in own transaction, then slab top is set and record is written
+        assertTrue(torn >= 7);
+    }
+
+    @Test
+    public void full() {
+        setup(8, 100);
+        assertArrayEquals(OK, store(0, 40));
+        assertArrayEquals(OK, store(1, 40));
+        assertEquals(16, freeBytes());
+        assertArrayEquals(FULL, store(2, 20));
+        assertArrayEquals(NOT_FOUND, hmac(2));
+        assertArrayEquals(OK, store(2, 14));
+        assertEquals(0, freeBytes());
+        assertArrayEquals(FULL, store(3, 0));
+
+        // Updating secret reuses its own space, even when slab is full
+        byte[] before = hmac(1);
+        assertArrayEquals(OK, store(1, 40));
+        assertArrayEquals(before, hmac(1));
+        assertArrayEquals(OK, store(0, 30));
+        assertEquals(10, freeBytes());
+        assertArrayEquals(OK, store(0, 40));
+        assertArrayEquals(before, hmac(1));
+        assertArrayEquals(hmac(0), hmacByName(0));
+        assertArrayEquals(FULL, store(0, 41));
+    }
+
+    @Test
+    public void growthKeepsSecret() {
+        setup(8, 100);
+        assertArrayEquals(OK, store(0, 20));
+        assertArrayEquals(OK, store(1, 40));
+        assertArrayEquals(OK, store(2, 30));
+        assertEquals(4, freeBytes());
+
+        // Longer secret is written before old one is released, so it doesn't fit
+        byte[] before = hmac(0);
+        assertArrayEquals(FULL, store(0, 24));
+        assertArrayEquals(before, hmac(0));
+        assertArrayEquals(before, hmacByName(0));
+        assertEquals(4, freeBytes());
+
+        assertArrayEquals(OK, delete(2));
+        assertArrayEquals(OK, store(0, 24));
+        assertArrayEquals(hmac(0), hmacByName(0));
+        assertEquals(100 - 26 - 42, freeBytes());
+    }
+
+    @Test
+    public void deleteDoesNotMove() throws Exception {
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x0B,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24, // AD
+                         0x00, (byte)200
+                        };
+        OTPCardCostModel card = new OTPCardCostModel(params);
+        sim = card.sim;
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        assertArrayEquals(OK, sim.transmitCommand(apdu_pin));
+        for (int id = 0; id < 8; id++)
+            assertArrayEquals(OK, store(id, 20));
+
+        // Hole is left in place, data of other records is not rewritten
+        byte[] apdu_delete = {(byte)0x00, 0x04, 0x00, 0x00, 2, 0, 0};
+        assertArrayEquals(OK, card.transmit(apdu_delete));
+        assertEquals(1, card.last().transactions);
+        assertTrue(card.last().persistentBytes < 20);
+        assertEquals(200 - 7 * 22, freeBytes());
+
+        // Compaction is done by save which needs the space
+        assertArrayEquals(OK, store(0, 40));
+        for (int id = 1; id < 8; id++)
+            assertArrayEquals(hmac(id), hmacByName(id));
+        assertArrayEquals(hmac(0), hmacByName(0));
+    }
+}
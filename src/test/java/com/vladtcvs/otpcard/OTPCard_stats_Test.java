@@ -0,0 +1,228 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.utils.*;
+
+public class OTPCard_stats_Test {
+    private static final int MAX_SECRETS = 12;
+    private static final byte[] OK = {(byte)0x90, (byte)0x00};
+    private static final byte[] APDU_PIN = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+    private static final byte[] APDU_INFO = {(byte)0x00, 0x08, 0x00, 0x00, 0x00};
+
+    // Cost model is used as simulator, so persistent writes of counters can be checked
+    private OTPCardCostModel card;
+
+    @BeforeEach
+    void setup() throws Exception {
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         0x00, MAX_SECRETS, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        card = new OTPCardCostModel(params);
+        assertArrayEquals(OK, card.transmit(APDU_PIN));
+
+        for (int id = 0; id < MAX_SECRETS; id++) {
+            byte[] apdu = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, (byte)id, 6, 'S', 'E', 'C', 'R', 'E', 'T', 4, 'N', 'A', 'M', 'E', 1};
+            assertArrayEquals(OK, card.transmit(apdu));
+        }
+    }
+
+    private byte[] hmac(int id) {
+        byte[] apdu = {(byte)0x00, 0x01, 0x00, 0x00, 12, 0, (byte)id, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+        return card.transmit(apdu);
+    }
+
+    private byte[] stats(int first) {
+        byte[] apdu = {(byte)0x00, 0x12, 0x00, 0x00, 2, (byte)(first >> 8), (byte)first};
+        byte[] resp = card.transmit(apdu);
+        assertArrayEquals(OK, new byte[]{resp[resp.length - 2], resp[resp.length - 1]});
+        return resp;
+    }
+
+    private static long number(byte[] resp, int off) {
+        long value = 0;
+        for (int i = 0; i < 4; i++)
+            value = (value << 8) | (resp[off + i] & 0xFF);
+        return value;
+    }
+
+    private static long insCount(byte[] resp, int ins) {
+        return number(resp, 6 + 4 * (ins == 0x42 ? 0 : ins));
+    }
+
+    private static long untracked(byte[] resp) {
+        return number(resp, 2);
+    }
+
+    // Uses of secret id, -1 if it is not listed
+    private static long uses(byte[] resp, int id) {
+        for (int off = 6 + 128; off < resp.length - 2; off += 6) {
+            if ((((resp[off] & 0xFF) << 8) | (resp[off + 1] & 0xFF)) == id)
+                return number(resp, off + 2);
+        }
+        return -1;
+    }
+
+    private void reselect() {
+        card.sim.selectApplet(AIDUtil.create("A000000002020101"));
+        assertArrayEquals(OK, card.transmit(APDU_PIN));
+    }
+
+    @Test
+    public void counters() {
+        for (int i = 0; i < 5; i++)
+            hmac(0);
+        for (int i = 0; i < 3; i++)
+            hmac(1);
+        card.transmit(APDU_INFO);
+        card.transmit(APDU_INFO);
+
+        byte[] resp = stats(0);
+        assertEquals(6 + 128 + 6 * MAX_SECRETS + 2, resp.length);
+        assertEquals(0xFFFF, ((resp[0] & 0xFF) << 8) | (resp[1] & 0xFF));
+        assertEquals(8, insCount(resp, 0x01));
+        assertEquals(2, insCount(resp, 0x08));
+        assertEquals(1, insCount(resp, 0x12));
+        assertEquals(1, insCount(resp, 0x42));
+        assertEquals(MAX_SECRETS, insCount(resp, 0x03));
+        assertEquals(5, uses(resp, 0));
+        assertEquals(3, uses(resp, 1));
+        assertEquals(0, uses(resp, 2));
+        assertEquals(0, untracked(resp));
+
+        // Counters are kept over deselect
+        hmac(0);
+        reselect();
+        hmac(0);
+        resp = stats(0);
+        assertEquals(10, insCount(resp, 0x01));
+        assertEquals(2, insCount(resp, 0x12));
+        assertEquals(2, insCount(resp, 0x42));
+        assertEquals(7, uses(resp, 0));
+    }
+
+    @Test
+    public void manySecrets() {
+        // Only several recently used secrets are counted per secret until next flush
+        for (int id = 0; id < MAX_SECRETS; id++)
+            hmac(id);
+        hmac(0);
+        byte[] resp = stats(0);
+        assertEquals(2, uses(resp, 0));
+        assertEquals(1, uses(resp, 7));
+        assertEquals(0, uses(resp, 8));
+        assertEquals(MAX_SECRETS - 8, untracked(resp));
+
+        // Paging by first id
+        resp = stats(10);
+        assertEquals(6 + 128 + 6 * 2 + 2, resp.length);
+        assertEquals(-1, uses(resp, 0));
+        assertEquals(0, uses(resp, 10));
+    }
+
+    @Test
+    public void changedSecret() {
+        hmac(3);
+        hmac(3);
+        byte[] apdu_store = {(byte)0x00, 0x03, 0x00, 0x00, 15, 0, 3, 6, 'O', 'T', 'H', 'E', 'R', 'S', 4, 'N', 'A', 'M', 'E', 1};
+        assertArrayEquals(OK, card.transmit(apdu_store));
+        hmac(3);
+        assertEquals(1, uses(stats(0), 3));
+
+        byte[] apdu_delete = {(byte)0x00, 0x04, 0x00, 0x00, 2, 0, 3};
+        assertArrayEquals(OK, card.transmit(apdu_delete));
+        assertEquals(-1, uses(stats(0), 3));
+    }
+
+    @Test
+    public void noPersistentWrites() {
+        // HMAC doesn't write persistent memory, even when accumulators are full
+        for (int i = 0; i < 1000; i++) {
+            hmac(i % MAX_SECRETS);
+            assertEquals(0, card.last().persistentBytes);
+            assertEquals(0, card.last().transactions);
+        }
+
+        // They are flushed before the next command, which is not a computation
+        card.transmit(APDU_INFO);
+        assertTrue(card.last().persistentBytes > 0);
+        assertEquals(1, card.last().transactions);
+        card.transmit(APDU_INFO);
+        assertEquals(0, card.last().persistentBytes);
+        byte[] resp = stats(0);
+        assertEquals(1000, insCount(resp, 0x01));
+        assertEquals(1000 / MAX_SECRETS + 1, uses(resp, 0));
+    }
+
+    @Test
+    public void saturation() {
+        // Sent past cost model, which snapshots state on every APDU
+        byte[] apdu = {(byte)0x00, 0x01, 0x00, 0x00, 12, 0, 0, 9, 'C', 'H', 'A', 'L', 'L', 'E', 'N', 'G', 'E'};
+        for (int i = 0; i < 0x8000 + 10; i++)
+            card.sim.transmitCommand(apdu);
+        byte[] resp = stats(0);
+        assertEquals(0x7FFF, insCount(resp, 0x01));
+        assertEquals(0x7FFF, uses(resp, 0));
+    }
+
+    @Test
+    public void powerLoss() {
+        for (int i = 0; i < 300; i++)
+            hmac(0);
+        card.transmit(APDU_INFO);
+        for (int i = 0; i < 10; i++)
+            hmac(0);
+
+        // Deselect is not called, so only flushed counts are kept
+        card.sim.reset();
+        reselect();
+        byte[] resp = stats(0);
+        assertEquals(300, insCount(resp, 0x01));
+        assertEquals(300, uses(resp, 0));
+    }
+
+    @Test
+    public void emptySlot() {
+        byte[] apdu_delete = {(byte)0x00, 0x04, 0x00, 0x00, 2, 0, 5};
+        assertArrayEquals(OK, card.transmit(apdu_delete));
+
+        // Uses are counted only for computed HMACs and OTPs
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x83}, hmac(5));
+        byte[] apdu_hotp = {(byte)0x00, 0x0A, 0x00, 0x00, 2, 0, 5};
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x83}, card.transmit(apdu_hotp));
+        byte[] apdu_totp = {(byte)0x00, 0x0B, 0x00, 0x00, 10, 0, 5, 0, 0, 0, 0, 0x60, 0, 0, 0};
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x83}, card.transmit(apdu_totp));
+        byte[] apdu_batch = {(byte)0x00, 0x09, 0x00, 0x00, 8, 0, 0, 1, 0, 0, 5, 1, 0};
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x83}, card.transmit(apdu_batch));
+
+        byte[] resp = stats(0);
+        assertEquals(-1, uses(resp, 5));
+        assertEquals(0, uses(resp, 0));
+        assertEquals(0, untracked(resp));
+
+        // Deselect flushes accumulators too
+        hmac(0);
+        reselect();
+        assertEquals(1, uses(stats(0), 0));
+    }
+
+    @Test
+    public void wrongArguments() {
+        byte[] apdu = {(byte)0x00, 0x12, 0x00, 0x00, 2, 0, MAX_SECRETS + 1};
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x84}, card.transmit(apdu));
+
+        card.sim.reset();
+        card.sim.selectApplet(AIDUtil.create("A000000002020101"));
+        byte[] apdu_stats = {(byte)0x00, 0x12, 0x00, 0x00, 2, 0, 0};
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x82}, card.transmit(apdu_stats));
+    }
+}
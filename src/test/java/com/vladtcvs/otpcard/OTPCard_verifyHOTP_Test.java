@@ -0,0 +1,186 @@
+package com.vladtcvs.otpcard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.utils.*;
+
+import javacard.framework.*;
+
+public class OTPCard_verifyHOTP_Test {
+    // RFC 4226 Appendix D
+    private static final byte[] SECRET = {'1', '2', '3', '4', '5', '6', '7', '8', '9', '0',
+                                          '1', '2', '3', '4', '5', '6', '7', '8', '9', '0'};
+    private static final String[] RFC4226_OTP = {"755224", "287082", "359152", "969429", "338314",
+                                                 "254676", "287922", "162583", "399871", "520489"};
+    private static final int[] WINDOWS = {1, 10, 100};
+    private static final int ROUNDS = 20;
+
+    private Simulator sim;
+
+    @BeforeEach
+    void setup() {
+        sim = new Simulator();
+        // Install and select
+        AID appletAID = AIDUtil.create("A000000002020101");
+        byte[] params = {(byte)0x08, // AID len
+                         (byte)0xA0, 0x00, 0x00, 0x00, 0x02, 0x02, 0x01, 0x01, // AID
+                         0x01, // CI len
+                         0x00, // CI data
+                         0x09,  // AD len
+                         0x00, 0x08, 0x08, 0x03, 0x03, 0x21, 0x22, 0x23, 0x24 // AD
+                        };
+        sim.installApplet(appletAID, OTPCard.class, params, (short)0, (byte)params.length);
+        sim.selectApplet(appletAID);
+
+        byte[] apdu_pin = {(byte)0x00, 0x42, 0x00, 0x00, 7, 6, '1', '2', '3', '4', '5', '6'};
+        byte[] resp = sim.transmitCommand(apdu_pin);
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, resp);
+    }
+
+    // SAVE_NEW_SECRET of 6 digits SHA1 HOTP, or of raw HMAC if counter is negative
+    private byte[] store(byte id, long counter) {
+        int params_len = counter >= 0 ? 11 : 0;
+        byte[] apdu = new byte[5 + 2 + 1 + SECRET.length + 5 + 1 + params_len];
+        int pos = 0;
+        apdu[pos++] = 0x00;
+        apdu[pos++] = 0x03;
+        apdu[pos++] = 0x00;
+        apdu[pos++] = 0x00;
+        apdu[pos++] = (byte)(apdu.length - 5);
+        apdu[pos++] = 0;
+        apdu[pos++] = id;
+        apdu[pos++] = (byte)SECRET.length;
+        for (int i = 0; i < SECRET.length; i++)
+            apdu[pos++] = SECRET[i];
+        apdu[pos++] = 4;
+        apdu[pos++] = 'H';
+        apdu[pos++] = 'O';
+        apdu[pos++] = 'T';
+        apdu[pos++] = 'P';
+        apdu[pos++] = 1;
+        if (counter >= 0) {
+            apdu[pos++] = 10;
+            apdu[pos++] = 1; // HOTP
+            apdu[pos++] = 6;
+            for (int i = 7; i >= 0; i--)
+                apdu[pos++] = (byte)(counter >> (8 * i));
+        }
+        return sim.transmitCommand(apdu);
+    }
+
+    private byte[] verify(byte id, int window, String otp) {
+        byte[] apdu = new byte[5 + 3 + otp.length()];
+        apdu[1] = 0x0C;
+        apdu[4] = (byte)(apdu.length - 5);
+        apdu[6] = id;
+        apdu[7] = (byte)window;
+        for (int i = 0; i < otp.length(); i++)
+            apdu[8 + i] = (byte)otp.charAt(i);
+        return sim.transmitCommand(apdu);
+    }
+
+    private void checkHOTP(byte id, String otp) {
+        byte[] apdu = {(byte)0x00, 0x0A, 0x00, 0x00, 2, 0, id};
+        byte[] resp = sim.transmitCommand(apdu);
+        byte[] expected = new byte[otp.length() + 2];
+        for (int i = 0; i < otp.length(); i++)
+            expected[i] = (byte)otp.charAt(i);
+        expected[otp.length()] = (byte)0x90;
+        expected[otp.length() + 1] = 0x00;
+        assertArrayEquals(expected, resp);
+    }
+
+    // Host side of the per-step approach: HMAC of counter from card, truncation on host
+    private String hostHOTP(byte id, long counter) {
+        byte[] apdu = new byte[5 + 3 + 8];
+        apdu[1] = 0x01;
+        apdu[4] = 11;
+        apdu[6] = id;
+        apdu[7] = 8;
+        for (int i = 0; i < 8; i++)
+            apdu[8 + i] = (byte)(counter >> (8 * (7 - i)));
+        byte[] hmac = sim.transmitCommand(apdu);
+        int offset = hmac[19] & 0x0F;
+        int bin = ((hmac[offset] & 0x7F) << 24) | ((hmac[offset + 1] & 0xFF) << 16) |
+                  ((hmac[offset + 2] & 0xFF) << 8) | (hmac[offset + 3] & 0xFF);
+        return String.format("%06d", bin % 1000000);
+    }
+
+    @Test
+    public void lookAhead() {
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)0, 0));
+        assertArrayEquals(new byte[]{(byte)0x03, (byte)0x90, (byte)0x00}, verify((byte)0, 5, RFC4226_OTP[3]));
+        checkHOTP((byte)0, RFC4226_OTP[4]);
+
+        // Same OTP can't be used twice
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x80}, verify((byte)0, 5, RFC4226_OTP[3]));
+        assertArrayEquals(new byte[]{(byte)0x00, (byte)0x90, (byte)0x00}, verify((byte)0, 0, RFC4226_OTP[5]));
+    }
+
+    @Test
+    public void outOfWindow() {
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)0, 0));
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x80}, verify((byte)0, 2, RFC4226_OTP[3]));
+        // Counter is not changed after failed check
+        checkHOTP((byte)0, RFC4226_OTP[0]);
+    }
+
+    @Test
+    public void resync() {
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)0, 0));
+        // Second OTP should be next one
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x80}, verify((byte)0, 9, RFC4226_OTP[5] + RFC4226_OTP[7]));
+        // Match at the window end needs one more counter for second OTP
+        assertArrayEquals(new byte[]{(byte)0x05, (byte)0x90, (byte)0x00}, verify((byte)0, 5, RFC4226_OTP[5] + RFC4226_OTP[6]));
+        checkHOTP((byte)0, RFC4226_OTP[7]);
+    }
+
+    @Test
+    public void wrongRequest() {
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)0, 0));
+        assertArrayEquals(new byte[]{(byte)0x67, (byte)0x00}, verify((byte)0, 5, "12345"));
+        assertArrayEquals(new byte[]{(byte)0x67, (byte)0x00}, verify((byte)0, 5, "1234567"));
+
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)1, -1));
+        assertArrayEquals(new byte[]{(byte)0x69, (byte)0x85}, verify((byte)1, 5, RFC4226_OTP[0]));
+        assertArrayEquals(new byte[]{(byte)0x6A, (byte)0x83}, verify((byte)2, 5, RFC4226_OTP[0]));
+    }
+
+    @Test
+    public void benchmark() {
+        // Raw HMAC secret for per-step approach, HOTP secret for on-card check
+        assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)1, -1));
+
+        for (int window : WINDOWS) {
+            // Worst case, OTP matches the last counter of window
+            long host_ns = 0;
+            long card_ns = 0;
+            for (int r = 0; r < ROUNDS; r++) {
+                long c = (long)r * (window + 1);
+                String otp = hostHOTP((byte)1, c + window);
+
+                long start = System.nanoTime();
+                int found = -1;
+                for (int i = 0; i <= window && found < 0; i++) {
+                    if (hostHOTP((byte)1, c + i).equals(otp))
+                        found = i;
+                }
+                host_ns += System.nanoTime() - start;
+                assertEquals(window, found);
+
+                assertArrayEquals(new byte[]{(byte)0x90, (byte)0x00}, store((byte)0, c));
+                start = System.nanoTime();
+                byte[] resp = verify((byte)0, window, otp);
+                card_ns += System.nanoTime() - start;
+                assertArrayEquals(new byte[]{(byte)window, (byte)0x90, (byte)0x00}, resp);
+            }
+            System.out.println("W=" + window + ": per-step " + (window + 1) + " APDUs, " + host_ns / ROUNDS / 1000 + " us; " +
+                               "VERIFY_HOTP 1 APDU, " + card_ns / ROUNDS / 1000 + " us");
+        }
+    }
+}
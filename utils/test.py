@@ -88,7 +88,7 @@ if __name__ == "__main__":
     print("Get secret status")
     pin = b'123456'
     secret_id = 0
-    args = [secret_id]
+    args = [secret_id >> 8, secret_id & 0xFF]
     CLA = 0x00
     INS = 0x02 # Get secret status
     P1 = 0x00
@@ -103,7 +103,7 @@ if __name__ == "__main__":
         secretB32 = base64.b32encode(secret)
         print("Set secret")
         print("secret base32 = ", secretB32)
-        args = [secret_id] + [len(secret)] + list(secret) + [len(name)] + list(name) + [method]
+        args = [secret_id >> 8, secret_id & 0xFF] + [len(secret)] + list(secret) + [len(name)] + list(name) + [method]
         CLA = 0x00
         INS = 0x03 # Save secret
         P1 = 0x00
@@ -113,7 +113,7 @@ if __name__ == "__main__":
     
     print("Get HMAC")
     challenge = b'CHALLENGE'
-    args = [secret_id] + [len(challenge)] + list(challenge)
+    args = [secret_id >> 8, secret_id & 0xFF] + [len(challenge)] + list(challenge)
     CLA = 0x00
     INS = 0x01 # Generate HMAC
     P1 = 0x00